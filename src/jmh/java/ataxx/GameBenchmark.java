@@ -0,0 +1,119 @@
+package ataxx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Move generation, move making and game end detection on mid-game
+ *  positions, in operations per position, and a perft walk counting
+ *  the leaves depth plies below a mid-game position. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameBenchmark {
+
+    static final int NUM_POSITIONS = 1024;
+    static final long SEED = 1;
+
+    @Param({"3"})
+    int depth;
+
+    @Setup
+    public void setup() {
+        _game = new AtaxxGame();
+        _boards = Positions.midGame(_game, NUM_POSITIONS, SEED);
+        _actions = new int[_game.actionSize()];
+        _moves = new int[NUM_POSITIONS];
+        Random random = new Random(SEED);
+        for (int i = 0; i < NUM_POSITIONS; i += 1) {
+            int n = _game.legalActions(_boards[i], 1, _actions);
+            _moves[i] = _actions[random.nextInt(n)];
+        }
+        _scratch = _game.initial();
+        _perftActions = new int[depth + 1][_game.actionSize()];
+        _perftBoards = new Board[depth + 1];
+        for (int d = 0; d <= depth; d += 1) {
+            _perftBoards[d] = _game.initial();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_POSITIONS)
+    public int legalActions() {
+        int total = 0;
+        for (Board board : _boards) {
+            total += _game.legalActions(board, 1, _actions);
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_POSITIONS)
+    public long next() {
+        long hashes = 0;
+        for (int i = 0; i < NUM_POSITIONS; i += 1) {
+            _scratch.copyFrom(_boards[i]);
+            hashes ^= _game.next(_scratch, 1, _moves[i]).hash();
+        }
+        return hashes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_POSITIONS)
+    public float value() {
+        float total = 0;
+        for (Board board : _boards) {
+            total += _game.value(board, 1);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long perft() {
+        _perftBoards[depth].copyFrom(_boards[0]);
+        return perft(depth, 1);
+    }
+
+    /** counts positions d plies below _perftBoards[d], with games that
+     *  end sooner counted once */
+    private long perft(int d, int player) {
+        if (d == 0) {
+            return 1;
+        }
+        Board board = _perftBoards[d];
+        int[] actions = _perftActions[d];
+        int n = _game.legalActions(board, player, actions);
+        if (n == 0) {
+            return 1;
+        }
+        long leaves = 0;
+        for (int i = 0; i < n; i += 1) {
+            Board child = _perftBoards[d - 1];
+            child.copyFrom(board);
+            _game.next(child, player, actions[i]);
+            leaves += perft(d - 1, -player);
+        }
+        return leaves;
+    }
+
+    private Game _game;
+    private Board[] _boards, _perftBoards;
+    private Board _scratch;
+    private int[] _actions, _moves;
+    private int[][] _perftActions;
+}
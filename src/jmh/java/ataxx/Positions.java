@@ -0,0 +1,35 @@
+package ataxx;
+
+import java.util.Random;
+
+/** Fixed sets of positions for the benchmarks. */
+final class Positions {
+
+    /** first and last plies of random games sampled as mid-game */
+    static final int FROM_PLY = 20, TO_PLY = 60;
+
+    /** returns n canonical positions between FROM_PLY and TO_PLY of
+     *  random games played with seed */
+    static Board[] midGame(Game game, int n, long seed) {
+        Random random = new Random(seed);
+        Board[] boards = new Board[n];
+        int[] actions = new int[game.actionSize()];
+        int found = 0;
+        while (found < n) {
+            Board board = game.initial();
+            int player = 1;
+            for (int ply = 0; ply < TO_PLY && found < n
+                    && game.value(board, player) == 0; ply += 1) {
+                if (ply >= FROM_PLY) {
+                    boards[found] = game.canonical(board.copy(), player);
+                    found += 1;
+                }
+                int numActions = game.legalActions(board, player, actions);
+                board = game.next(board, player,
+                        actions[random.nextInt(numActions)]);
+                player = -player;
+            }
+        }
+        return boards;
+    }
+}
@@ -0,0 +1,54 @@
+package ataxx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** NeuralNet.predict on mid-game positions at several batch sizes, in
+ *  milliseconds per call. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PredictBenchmark {
+
+    static final long SEED = 1;
+
+    @Param({"classic", "small"})
+    String profile;
+
+    @Param({"1", "8", "32", "128"})
+    int batchSize;
+
+    @Setup
+    public void setup() {
+        _game = new AtaxxGame();
+        _nnet = new NeuralNet(_game, NetProfile.named(profile));
+        _boards = Positions.midGame(_game, batchSize, SEED);
+        _logPolicies = new float[batchSize * _game.actionSize()];
+        _values = new float[batchSize];
+    }
+
+    @Benchmark
+    public float[] predict() {
+        _nnet.predict(_boards, batchSize, _logPolicies, _values);
+        return _values;
+    }
+
+    private Game _game;
+    private NeuralNet _nnet;
+    private Board[] _boards;
+    private float[] _logPolicies, _values;
+}
@@ -0,0 +1,78 @@
+package ataxx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** MCTS.policy simulations per second from mid-game positions, each
+ *  search of NUM_SIMS starting from an emptied tree. The uniform
+ *  evaluator measures the search alone; the others add a network of
+ *  that profile. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    static final int NUM_POSITIONS = 64;
+    /** simulations per search, enough that emptying the tree is a small
+     *  part of each invocation */
+    static final int NUM_SIMS = 200;
+    static final long SEED = 1;
+
+    @Param({"uniform", "small", "classic"})
+    String evaluator;
+
+    @Setup
+    public void setup() {
+        _game = new AtaxxGame();
+        _boards = Positions.midGame(_game, NUM_POSITIONS, SEED);
+        if (evaluator.equals("uniform")) {
+            _evaluator = (boards, n, logPolicies, values) -> {
+                Arrays.fill(logPolicies, 0, n * _game.actionSize(),
+                        (float) -Math.log(_game.actionSize()));
+                Arrays.fill(values, 0, n, 0);
+            };
+        } else {
+            _evaluator = new NeuralNet(_game, NetProfile.named(evaluator));
+        }
+        _random = new Random(SEED);
+    }
+
+    @Setup(Level.Iteration)
+    public void newSearch() {
+        _mcts = new MCTS(_game, _evaluator, _random);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_SIMS)
+    public float[] policy() {
+        Board board = _boards[_next];
+        _next = (_next + 1) % NUM_POSITIONS;
+        _mcts.clear();
+        return _mcts.policy(board, 1, NUM_SIMS);
+    }
+
+    private Game _game;
+    private Board[] _boards;
+    private Evaluator _evaluator;
+    private MCTS _mcts;
+    private Random _random;
+    private int _next;
+}
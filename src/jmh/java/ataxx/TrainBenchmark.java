@@ -0,0 +1,83 @@
+package ataxx;
+
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** One NeuralNet training step on a fixed batch of BATCH_SIZE mid-game
+ *  positions with uniform legal move targets, in milliseconds per
+ *  step. As in NeuralNet.train, everything a step creates is closed
+ *  with a manager of its own once the step is done. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainBenchmark {
+
+    static final long SEED = 1;
+
+    @Param({"classic", "small"})
+    String profile;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        _game = new AtaxxGame();
+        _nnet = new NeuralNet(_game, NetProfile.named(profile));
+        Random random = new Random(SEED);
+        ReplayBuffer replay = new ReplayBuffer(NeuralNet.BATCH_SIZE);
+        float[] policy = new float[_game.actionSize()];
+        int[] actions = new int[_game.actionSize()];
+        for (Board board : Positions.midGame(_game, NeuralNet.BATCH_SIZE,
+                SEED)) {
+            int n = _game.legalActions(board, 1, actions);
+            Arrays.fill(policy, 0);
+            for (int i = 0; i < n; i += 1) {
+                policy[actions[i]] = 1f / n;
+            }
+            replay.add(board, policy, random.nextBoolean() ? 1 : -1);
+        }
+        _manager = _nnet.getNDManager().newSubManager();
+        try (BatchProducer producer = new BatchProducer(_game, replay,
+                NeuralNet.BATCH_SIZE, 1, false, random)) {
+            _batch = producer.next(_manager);
+        }
+        _losses = new float[2];
+    }
+
+    @TearDown
+    public void tearDown() {
+        _manager.close();
+    }
+
+    @Benchmark
+    public float[] trainStep() {
+        try (NDManager scope = _manager.newSubManager()) {
+            _batch.tempAttach(scope);
+            _nnet.trainStep(_batch, _losses);
+        }
+        return _losses;
+    }
+
+    private Game _game;
+    private NeuralNet _nnet;
+    private float[] _losses;
+    private NDManager _manager;
+    private NDList _batch;
+}
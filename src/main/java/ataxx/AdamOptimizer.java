@@ -0,0 +1,118 @@
+package ataxx;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.nn.Parameter;
+import ai.djl.training.optimizer.Optimizer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Adam that keeps its moment estimates and step counts where a
+ *  checkpoint can save and restore them. Applies the same update as
+ *  DJL's Adam with its default betas and epsilon. */
+final class AdamOptimizer extends Optimizer {
+
+    static final float BETA1 = 0.9f, BETA2 = 0.999f, EPSILON = 1e-8f;
+
+    /** keeps moments on manager */
+    AdamOptimizer(float learningRate, NDManager manager) {
+        super(new Builder());
+        _learningRate = learningRate;
+        _manager = manager;
+        _steps = new ConcurrentHashMap<>();
+        _means = new ConcurrentHashMap<>();
+        _variances = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void update(String parameterId, NDArray weight, NDArray grad) {
+        int step = _steps.merge(parameterId, 1, Integer::sum);
+        NDArray mean = moment(_means, parameterId, weight);
+        NDArray variance = moment(_variances, parameterId, weight);
+        NDArray scaled = grad.mul(1 - BETA1);
+        mean.muli(BETA1).addi(scaled);
+        scaled.close();
+        NDArray squared = grad.square().muli(1 - BETA2);
+        variance.muli(BETA2).addi(squared);
+        squared.close();
+        double learningRate = _learningRate
+                * Math.sqrt(1 - Math.pow(BETA2, step))
+                / (1 - Math.pow(BETA1, step));
+        NDArray deviation = variance.sqrt().addi(EPSILON);
+        NDArray change = mean.div(deviation).muli(learningRate);
+        weight.subi(change);
+        deviation.close();
+        change.close();
+    }
+
+    /** writes the step count and moments of each of params, in order */
+    void save(DataOutputStream out, List<Parameter> params)
+            throws IOException {
+        for (Parameter param : params) {
+            String id = param.getId();
+            int step = _steps.getOrDefault(id, 0);
+            out.writeInt(step);
+            if (step > 0) {
+                Checkpoint.writeFloats(out, _means.get(id).toFloatArray());
+                Checkpoint.writeFloats(out,
+                        _variances.get(id).toFloatArray());
+            }
+        }
+    }
+
+    /** reads state written by save for the same params */
+    void load(DataInputStream in, List<Parameter> params)
+            throws IOException {
+        for (Parameter param : params) {
+            String id = param.getId();
+            int step = in.readInt();
+            replace(_means, id, null);
+            replace(_variances, id, null);
+            _steps.remove(id);
+            if (step > 0) {
+                _steps.put(id, step);
+                NDArray weight = param.getArray();
+                replace(_means, id, _manager.create(
+                        Checkpoint.readFloats(in), weight.getShape()));
+                replace(_variances, id, _manager.create(
+                        Checkpoint.readFloats(in), weight.getShape()));
+            }
+        }
+    }
+
+    private NDArray moment(Map<String, NDArray> moments, String id,
+                           NDArray weight) {
+        return moments.computeIfAbsent(id, k -> {
+            NDArray zeros = weight.zerosLike();
+            zeros.attach(_manager);
+            return zeros;
+        });
+    }
+
+    private static void replace(Map<String, NDArray> moments, String id,
+                                NDArray moment) {
+        NDArray old = moment == null
+                ? moments.remove(id) : moments.put(id, moment);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    private static class Builder extends OptimizerBuilder<Builder> {
+
+        @Override
+        protected Builder self() {
+            return this;
+        }
+    }
+
+    private final float _learningRate;
+    private final NDManager _manager;
+    private final Map<String, Integer> _steps;
+    private final Map<String, NDArray> _means, _variances;
+}
@@ -0,0 +1,234 @@
+package ataxx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Plays a new network against an old one on a pool of workers to
+ *  decide whether the new one should replace it. Colors alternate by
+ *  game, and play stops as soon as a sequential probability ratio test
+ *  on the decisive games, or the win count alone, settles the result.
+ *  Results are counted in game order, whatever order the games finish
+ *  in, so that quick games do not decide more often and the colors
+ *  alternate in the games a decision rests on. */
+final class Arena {
+
+    /** win rates of the new network under the two SPRT hypotheses are
+     *  the gating threshold minus and plus SPRT_DELTA */
+    static final float SPRT_DELTA = 0.1f;
+    /** chances of accepting a network at the lower rate and of
+     *  rejecting one at the upper rate */
+    static final float SPRT_ALPHA = 0.05f, SPRT_BETA = 0.05f;
+    /** normal quantile for the reported 95% confidence interval */
+    static final float Z = 1.96f;
+
+    /** games end when a player resigns under resignation */
+    Arena(Game game, ExecutorService pool, int numWorkers,
+          Resignation resignation) {
+        _game = game;
+        _pool = pool;
+        _numWorkers = numWorkers;
+        _resignation = resignation;
+    }
+
+    /** plays up to maxGames games between oldNet and newNet, returning
+     *  true if newNet wins at least threshold of the decisive ones */
+    boolean accepts(Evaluator oldNet, Evaluator newNet,
+                    int maxGames, float threshold) {
+        _maxGames = maxGames;
+        _threshold = threshold;
+        _newWins = _oldWins = _draws = 0;
+        _decision = null;
+        _results = new float[maxGames];
+        Arrays.fill(_results, Float.NaN);
+        _numCounted = 0;
+        float p0 = threshold - SPRT_DELTA, p1 = threshold + SPRT_DELTA;
+        _llrWin = (float) Math.log(p1 / p0);
+        _llrLoss = (float) Math.log((1 - p1) / (1 - p0));
+        _lower = (float) Math.log(SPRT_BETA / (1 - SPRT_ALPHA));
+        _upper = (float) Math.log((1 - SPRT_BETA) / SPRT_ALPHA);
+
+        long[] seeds = new long[maxGames];
+        for (int j = 0; j < maxGames; j += 1) {
+            seeds[j] = Main.RAND.nextLong();
+        }
+        System.out.print("\tcomparison games:");
+        AtomicInteger nextGame = new AtomicInteger();
+        List<Callable<Void>> workers = new ArrayList<>();
+        for (int w = 0; w < _numWorkers; w += 1) {
+            workers.add(() -> {
+                Random random = new Random();
+                for (int j = nextGame.getAndIncrement();
+                     j < maxGames && !decided();
+                     j = nextGame.getAndIncrement()) {
+                    random.setSeed(seeds[j]);
+                    boolean newFirst = j % 2 == 1;
+                    MCTS red = new MCTS(_game,
+                            newFirst ? newNet : oldNet, random);
+                    MCTS blue = new MCTS(_game,
+                            newFirst ? oldNet : newNet, random);
+                    red.earlyStop(true);
+                    blue.earlyStop(true);
+                    float result = resultFromGame(red, blue);
+                    if (!Float.isNaN(result)) {
+                        finish(j, newFirst ? result : -result);
+                        System.out.print(" " + j);
+                    }
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> result : _pool.invokeAll(workers)) {
+                result.get();
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            ex.printStackTrace();
+        }
+        System.out.println();
+        if (_decision == null) {
+            int decisive = _newWins + _oldWins;
+            _accepted = decisive > 0
+                    && (float) _newWins / decisive >= threshold;
+            _decision = "all games";
+        }
+        return _accepted;
+    }
+
+    /** returns the score, decision and its confidence */
+    String report() {
+        int decisive = _newWins + _oldWins;
+        float winRate = decisive == 0 ? 0 : (float) _newWins / decisive;
+        float[] interval = wilson(_newWins, decisive);
+        String format = "%s by %s after %d/%d games, new: %d, old: %d, "
+                + "draws: %d, win rate: %.2f (95%% CI %.2f-%.2f), "
+                + "llr: %.2f in [%.2f, %.2f]";
+        return String.format(format, _accepted ? "accepted" : "rejected",
+                _decision, decisive + _draws, _maxGames, _newWins, _oldWins,
+                _draws, winRate, interval[0], interval[1],
+                llr(), _lower, _upper);
+    }
+
+    /** plays red against blue at temperature 0, returning 1 if red
+     *  wins or blue resigns, -1 if blue wins or red resigns, a small
+     *  value for a draw and NaN if the arena was decided before the
+     *  game ended */
+    float resultFromGame(MCTS red, MCTS blue) {
+        Resignation.Tracker resignation = _resignation.newGame(false);
+        int player = 1;
+        Board board = _game.initial();
+        float value = 0;
+        while (value == 0) {
+            if (decided()) {
+                return Float.NaN;
+            }
+            Board canonical = _game.canonical(board.copy(), player);
+            MCTS mcts = player > 0 ? red : blue;
+            float[] policy = mcts.policy(canonical, 0);
+            if (resignation.resigns(player, mcts.meanValue(canonical),
+                    mcts.value(canonical))) {
+                return -player;
+            }
+            int action = argMax(policy);
+            board = _game.next(board, player, action);
+            player = -player;
+            value = _game.value(board, player);
+        }
+        return player * value;
+    }
+
+    /** keeps result, for the new network, of game j and counts the
+     *  games finished since the last one counted, in index order */
+    private synchronized void finish(int j, float result) {
+        _results[j] = result;
+        while (_numCounted < _maxGames
+                && !Float.isNaN(_results[_numCounted])) {
+            record(_results[_numCounted]);
+            _numCounted += 1;
+        }
+    }
+
+    /** counts a game ending with result for the new network and stops
+     *  the arena once its outcome is settled */
+    private synchronized void record(float result) {
+        if (_decision != null) {
+            return;
+        }
+        if (result == 1) {
+            _newWins += 1;
+        } else if (result == -1) {
+            _oldWins += 1;
+        } else {
+            _draws += 1;
+        }
+        int remaining = _maxGames - _newWins - _oldWins - _draws;
+        float llr = llr();
+        if (llr >= _upper) {
+            decide(true, "sprt");
+        } else if (llr <= _lower) {
+            decide(false, "sprt");
+        } else if (_newWins + _oldWins > 0 && (float) _newWins
+                / (_newWins + _oldWins + remaining) >= _threshold) {
+            decide(true, "bound");
+        } else if (_newWins + _oldWins + remaining == 0 || (float)
+                (_newWins + remaining) / (_newWins + _oldWins + remaining)
+                < _threshold) {
+            decide(false, "bound");
+        }
+    }
+
+    private void decide(boolean accepted, String decision) {
+        _accepted = accepted;
+        _decision = decision;
+    }
+
+    private synchronized boolean decided() {
+        return _decision != null;
+    }
+
+    /** log likelihood ratio of the decisive games so far */
+    private float llr() {
+        return _newWins * _llrWin + _oldWins * _llrLoss;
+    }
+
+    /** Wilson score interval for wins out of n */
+    static float[] wilson(int wins, int n) {
+        if (n == 0) {
+            return new float[]{0, 1};
+        }
+        double p = (double) wins / n, z2 = Z * Z;
+        double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+        double half = Z * Math.sqrt(p * (1 - p) / n + z2 / (4.0 * n * n))
+                / (1 + z2 / n);
+        return new float[]{(float) (center - half), (float) (center + half)};
+    }
+
+    static int argMax(float[] ar) {
+        int best = 0;
+        for (int i = 1; i < ar.length; i += 1) {
+            if (ar[i] > ar[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private final Game _game;
+    private final ExecutorService _pool;
+    private final int _numWorkers;
+    private final Resignation _resignation;
+    private int _maxGames, _newWins, _oldWins, _draws;
+    private float _threshold, _llrWin, _llrLoss, _lower, _upper;
+    private boolean _accepted;
+    private String _decision;
+    /** results of finished games by index, NaN until they finish, and
+     *  the number counted so far */
+    private float[] _results;
+    private int _numCounted;
+}
@@ -2,18 +2,36 @@ package ataxx;
 
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
-import ai.djl.ndarray.index.NDIndex;
-import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 
 import java.util.ArrayList;
+import java.util.SplittableRandom;
 
 public class AtaxxGame implements Game {
 
     static final int SIDE = 7;
+    static final int AREA = SIDE * SIDE;
+    static final long FULL = (1L << AREA) - 1;
     static final int JUMP_LIMIT = 25;
     static final Shape SHAPE = new Shape(2, SIDE, SIDE);
     static final ArrayList<int[]> MOVES = new ArrayList<>();
+    /** squares at distance 1 and 2 from each square */
+    static final long[] NEIGHBORS = new long[AREA], JUMPS = new long[AREA];
+    /** source and destination square of each action */
+    static final int[] FROM, TO;
+    /** action moving from square s0 to s1, at ACTIONS[s0 * AREA + s1] */
+    static final int[] ACTIONS = new int[AREA * AREA];
+    /** Zobrist keys for pieces, jump counts and blue to move; FLIP_KEYS
+     *  is the change in either hash when a square switches color */
+    static final long[] RED_KEYS = new long[AREA], BLUE_KEYS = new long[AREA],
+            FLIP_KEYS = new long[AREA], JUMP_KEYS = new long[JUMP_LIMIT + 1];
+    static final long TURN_KEY;
+    /** number of rotations and reflections of the board */
+    static final int NUM_SYMMETRIES = 8;
+    /** image of each square and action under each symmetry, at
+     *  SYMMETRIC_SQUARES[sym][s] and SYMMETRIC_ACTIONS[sym][a] */
+    static final int[][] SYMMETRIC_SQUARES = new int[NUM_SYMMETRIES][AREA],
+            SYMMETRIC_ACTIONS;
     static {
         MOVES.add(null);
         for (int r0 = 0; r0 < SIDE; r0 += 1) {
@@ -30,18 +48,57 @@ public class AtaxxGame implements Game {
                 }
             }
         }
+        FROM = new int[MOVES.size()];
+        TO = new int[MOVES.size()];
+        for (int a = 1; a < MOVES.size(); a += 1) {
+            int[] m = MOVES.get(a);
+            int s0 = square(m[0], m[1]), s1 = square(m[2], m[3]);
+            FROM[a] = s0;
+            TO[a] = s1;
+            ACTIONS[s0 * AREA + s1] = a;
+            if (distance(m) == 1) {
+                NEIGHBORS[s0] |= 1L << s1;
+            } else {
+                JUMPS[s0] |= 1L << s1;
+            }
+        }
+        SplittableRandom keys = new SplittableRandom(AREA);
+        for (int s = 0; s < AREA; s += 1) {
+            RED_KEYS[s] = keys.nextLong();
+            BLUE_KEYS[s] = keys.nextLong();
+            FLIP_KEYS[s] = RED_KEYS[s] ^ BLUE_KEYS[s];
+        }
+        for (int j = 0; j <= JUMP_LIMIT; j += 1) {
+            JUMP_KEYS[j] = keys.nextLong();
+        }
+        TURN_KEY = keys.nextLong();
+        SYMMETRIC_ACTIONS = new int[NUM_SYMMETRIES][MOVES.size()];
+        for (int sym = 0; sym < NUM_SYMMETRIES; sym += 1) {
+            for (int r = 0; r < SIDE; r += 1) {
+                for (int c = 0; c < SIDE; c += 1) {
+                    int c1 = (sym & 4) != 0 ? SIDE - 1 - c : c, r1 = r;
+                    for (int k = 0; k < (sym & 3); k += 1) {
+                        int rotated = SIDE - 1 - r1;
+                        r1 = c1;
+                        c1 = rotated;
+                    }
+                    SYMMETRIC_SQUARES[sym][square(c, r)] = square(c1, r1);
+                }
+            }
+            int[] squares = SYMMETRIC_SQUARES[sym];
+            for (int a = 1; a < MOVES.size(); a += 1) {
+                SYMMETRIC_ACTIONS[sym][a] =
+                        ACTIONS[squares[FROM[a]] * AREA + squares[TO[a]]];
+            }
+        }
     }
 
     @Override
-    public NDArray initial(NDManager ndmanager) {
-        NDArray board = ndmanager.create(SHAPE, DataType.INT32);
+    public Board initial() {
         int end = SIDE - 1;
-        set(board, 0, 0, -1);
-        set(board, 0, end, 1);
-        set(board, end, 0, 1);
-        set(board, end, end, -1);
-        board.set(new NDIndex(1), 0);
-        return board;
+        long red = bit(0, end) | bit(end, 0);
+        long blue = bit(0, 0) | bit(end, end);
+        return new Board(red, blue, 0, 1);
     }
 
     @Override
@@ -55,19 +112,20 @@ public class AtaxxGame implements Game {
     }
 
     @Override
-    public float value(NDArray board, int player) {
+    public float value(Board board, int player) {
         float val;
-        int[] numPieces = numPieces(board);
-        if (numPieces[0] == 0) {
+        int numRed = Long.bitCount(board.red());
+        int numBlue = Long.bitCount(board.blue());
+        if (numRed == 0) {
             val = -1;
-        } else if (numPieces[1] == 0) {
+        } else if (numBlue == 0) {
             val = 1;
         } else if (!canMove(board, 1)
                 && !canMove(board, -1)
-                || board.getInt(1, 0, 0) == JUMP_LIMIT) {
-            if (numPieces[0] > numPieces[1]) {
+                || board.jumps() == JUMP_LIMIT) {
+            if (numRed > numBlue) {
                 val = 1;
-            } else if (numPieces[1] > numPieces[0]) {
+            } else if (numBlue > numRed) {
                 val = -1;
             } else {
                 val = Main.EPS;
@@ -79,62 +137,100 @@ public class AtaxxGame implements Game {
     }
 
     @Override
-    public NDArray next(NDArray board, int player, int action) {
-        NDArray newBoard = board.duplicate();
+    public Board next(Board board, int player, int action) {
+        long hash = board.hash() ^ TURN_KEY;
+        long flipHash = board.flipHash() ^ TURN_KEY;
         if (action == 0) {
-            return newBoard;
+            board.set(board.red(), board.blue(), board.jumps(), -player,
+                    hash, flipHash);
+            return board;
         }
-        int[] m = MOVES.get(action);
-        set(newBoard, m[2], m[3], player);
-        int distance = distance(m);
-        if (distance == 1) {
-            newBoard.set(new NDIndex(1), 0);
+        int from = FROM[action], to = TO[action];
+        long own = board.pieces(player), opp = board.pieces(-player);
+        long[] ownKeys = player > 0 ? RED_KEYS : BLUE_KEYS;
+        long[] oppKeys = player > 0 ? BLUE_KEYS : RED_KEYS;
+        int jumps;
+        if ((NEIGHBORS[from] & (1L << to)) != 0) {
+            jumps = 0;
         } else {
-            set(newBoard, m[0], m[1], 0);
-            newBoard.get(1).addi(1);
+            own &= ~(1L << from);
+            // a board over by the jump limit stays at it
+            jumps = Math.min(board.jumps() + 1, JUMP_LIMIT);
+            hash ^= ownKeys[from];
+            flipHash ^= oppKeys[from];
+        }
+        hash ^= ownKeys[to] ^ JUMP_KEYS[board.jumps()] ^ JUMP_KEYS[jumps];
+        flipHash ^= oppKeys[to] ^ JUMP_KEYS[board.jumps()] ^ JUMP_KEYS[jumps];
+        long flipped = NEIGHBORS[to] & opp;
+        for (long f = flipped; f != 0; f &= f - 1) {
+            long key = FLIP_KEYS[Long.numberOfTrailingZeros(f)];
+            hash ^= key;
+            flipHash ^= key;
         }
-        flipAdjacent(newBoard, m[2], m[3]);
-        return newBoard;
+        own |= flipped | (1L << to);
+        opp &= ~flipped;
+        if (player > 0) {
+            board.set(own, opp, jumps, -player, hash, flipHash);
+        } else {
+            board.set(opp, own, jumps, -player, hash, flipHash);
+        }
+        return board;
     }
 
     @Override
-    public NDArray legalActions(NDArray board, int player) {
-        NDManager manager = board.getManager();
+    public int legalActions(Board board, int player, int[] actions) {
         if (value(board, player) != 0) {
-            return manager.zeros(new Shape(1, actionSize()));
+            return 0;
         }
-        int[] moves = new int[MOVES.size()];
-        if (!canMove(board, player)) {
-            moves[0] = 1;
-        } else {
-            for (int i = 1; i < moves.length; i += 1) {
-                int[] m = MOVES.get(i);
-                if (get(board, m[0], m[1]) == player
-                        && get(board, m[2], m[3]) == 0
-                        && distance(m) <= 2) {
-                    moves[i] = 1;
-                }
+        int n = 0;
+        long empty = board.empty();
+        for (long own = board.pieces(player); own != 0; own &= own - 1) {
+            int from = Long.numberOfTrailingZeros(own);
+            long targets = (NEIGHBORS[from] | JUMPS[from]) & empty;
+            for (; targets != 0; targets &= targets - 1) {
+                int to = Long.numberOfTrailingZeros(targets);
+                actions[n] = ACTIONS[from * AREA + to];
+                n += 1;
             }
         }
-        return manager.create(moves);
+        if (n == 0) {
+            actions[0] = 0;
+            n = 1;
+        }
+        return n;
+    }
+
+    @Override
+    public Board canonical(Board board, int player) {
+        if (player < 0) {
+            board.set(board.blue(), board.red(), board.jumps(),
+                    -board.turn(), board.flipHash(), board.hash());
+        }
+        return board;
     }
 
     @Override
-    public NDArray canonical(NDArray board, int player) {
-        return board.get(0).mul(player).stack(board.get(1));
+    public NDArray toNDArray(Board board, NDManager manager) {
+        int[] data = new int[2 * AREA];
+        encode(board, data, 0);
+        return manager.create(data, SHAPE);
     }
 
     @Override
-    public String repr(NDArray board) {
-        return new String(board.encode());
+    public NDArray toNDArray(Board[] boards, int n, NDManager manager) {
+        int[] data = new int[n * 2 * AREA];
+        for (int i = 0; i < n; i += 1) {
+            encode(boards[i], data, i * 2 * AREA);
+        }
+        return manager.create(data, new Shape(n).addAll(SHAPE));
     }
 
     @Override
-    public String str(NDArray board) {
+    public String str(Board board) {
         StringBuilder str = new StringBuilder();
         for(int r = SIDE - 1; r >= 0; r -= 1) {
             for(int c = 0; c < SIDE; c += 1) {
-                int piece = get(board, c, r);
+                int piece = board.get(c, r);
                 if (piece == 1) {
                     str.append('R');
                 } else if (piece == -1) {
@@ -149,68 +245,64 @@ public class AtaxxGame implements Game {
         return str.toString();
     }
 
-    private int get(NDArray board, int c, int r) {
-        return board.getInt(0, r, c);
-    }
-
-    private void set(NDArray board, int c, int r, int piece) {
-        board.setScalar(new NDIndex(0, r, c), piece);
+    @Override
+    public void encode(Board board, int[] data, int offset) {
+        long red = board.red(), blue = board.blue();
+        for (int s = 0; s < AREA; s += 1) {
+            long bit = 1L << s;
+            if ((red & bit) != 0) {
+                data[offset + s] = 1;
+            } else if ((blue & bit) != 0) {
+                data[offset + s] = -1;
+            } else {
+                data[offset + s] = 0;
+            }
+            data[offset + AREA + s] = board.jumps();
+        }
     }
 
-    private boolean canMove(NDArray board, int player) {
-        int[] numPieces = numPieces(board);
-        int index = player > 0 ? 0 : 1;
-        if (numPieces[index] == 0) {
-            return false;
-        }
-        for (int r = 0; r < SIDE; r += 1) {
-            for (int c = 0; c < SIDE; c += 1) {
-                if (get(board, c, r) == player
-                    && nearEmpty(board, c, r)) {
-                    return true;
-                }
+    private boolean canMove(Board board, int player) {
+        long empty = board.empty();
+        for (long own = board.pieces(player); own != 0; own &= own - 1) {
+            int from = Long.numberOfTrailingZeros(own);
+            if (((NEIGHBORS[from] | JUMPS[from]) & empty) != 0) {
+                return true;
             }
         }
         return false;
     }
 
-    private boolean nearEmpty(NDArray board, int c, int r) {
-        for (int dr = -2; dr <= 2; dr += 1) {
-            for (int dc = -2; dc <= 2; dc += 1) {
-                int ac = c + dc, ar = r + dr;
-                if ((ac != c || ar != r)
-                        && (ac > 0 && ac < SIDE)
-                        && (ar > 0 && ar < SIDE)
-                        && get(board, ac, ar) == 0) {
-                    return true;
-                }
-            }
+    /** Zobrist hash of the given position, computed from scratch */
+    static long zobrist(long red, long blue, int jumps, int turn) {
+        long hash = JUMP_KEYS[jumps] ^ (turn < 0 ? TURN_KEY : 0);
+        for (long b = red; b != 0; b &= b - 1) {
+            hash ^= RED_KEYS[Long.numberOfTrailingZeros(b)];
         }
-        return false;
+        for (long b = blue; b != 0; b &= b - 1) {
+            hash ^= BLUE_KEYS[Long.numberOfTrailingZeros(b)];
+        }
+        return hash;
     }
 
-    private void flipAdjacent(NDArray board, int c, int r) {
-        int player = get(board, c, r);
-        for (int dr = -1; dr <= 1; dr += 1) {
-            for (int dc = -1; dc <= 1; dc += 1) {
-                int ar = r + dr, ac = c + dc;
-                if ((ar != r || ac != c)
-                        && (ar > 0 && ar < SIDE)
-                        && (ac > 0 && ac < SIDE)
-                        && get(board, ac, ar) == -player) {
-                    set(board, ac, ar, player);
-                }
-            }
+    /** returns mask with every square moved by symmetry sym */
+    static long transform(long mask, int sym) {
+        int[] squares = SYMMETRIC_SQUARES[sym];
+        long result = 0;
+        for (long b = mask; b != 0; b &= b - 1) {
+            result |= 1L << squares[Long.numberOfTrailingZeros(b)];
         }
+        return result;
+    }
+
+    static int square(int c, int r) {
+        return r * SIDE + c;
     }
 
-    private int[] numPieces(NDArray board) {
-        long numRed = board.get(0).eq(1).countNonzero().getLong();
-        long numBlue = board.get(0).eq(-1).countNonzero().getLong();
-        return new int[]{(int) numRed, (int) numBlue};
+    static long bit(int c, int r) {
+        return 1L << square(c, r);
     }
 
-    int distance(int[] move) {
+    static int distance(int[] move) {
         int dc = Math.abs(move[0] - move[2]);
         int dr = Math.abs(move[1] - move[3]);
         return Math.max(dc, dr);
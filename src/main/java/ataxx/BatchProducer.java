@@ -0,0 +1,163 @@
+package ataxx;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/** Samples training minibatches from a replay buffer on a background
+ *  thread, keeping up to PREFETCH_BATCHES of them ready in reusable
+ *  direct buffers so that training steps do not wait on their
+ *  assembly. Each example is moved by a random rotation or reflection
+ *  when augment is set. */
+final class BatchProducer implements AutoCloseable {
+
+    static final int PREFETCH_BATCHES = 4;
+
+    /** starts producing numBatches minibatches of batchSize examples
+     *  drawn from replay with random */
+    BatchProducer(Game game, ReplayBuffer replay, int batchSize,
+                  int numBatches, boolean augment, Random random) {
+        _game = game;
+        _replay = replay;
+        _augment = augment;
+        _random = random;
+        _numBatches = numBatches;
+        _batchSize = Math.min(batchSize, replay.size());
+        _ready = new ArrayBlockingQueue<>(PREFETCH_BATCHES);
+        _free = new ArrayBlockingQueue<>(PREFETCH_BATCHES + 2);
+        for (int k = 0; k < PREFETCH_BATCHES + 2; k += 1) {
+            _free.add(new Batch());
+        }
+        _producer = new Thread(this::produce, "batch-producer");
+        _producer.setDaemon(true);
+        _producer.start();
+    }
+
+    /** blocks until the next minibatch is ready and returns its
+     *  boards, policies and values on manager, or null after the
+     *  last one. The arrays may share memory with the producer's
+     *  buffers, so they must be closed before the next call. */
+    NDList next(NDManager manager) throws InterruptedException {
+        if (_inUse != null) {
+            _free.add(_inUse);
+            _inUse = null;
+        }
+        if (_taken == _numBatches) {
+            return null;
+        }
+        Batch batch = _ready.take();
+        if (batch.error != null) {
+            throw batch.error;
+        }
+        _taken += 1;
+        int n = _batchSize, actionSize = _game.actionSize();
+        NDArray boards = manager.create(batch.boards.rewind(),
+                new Shape(n).addAll(_game.boardShape()), DataType.INT32);
+        NDArray policies = manager.create(batch.policies.rewind(),
+                new Shape(n, actionSize), DataType.FLOAT32);
+        NDArray values = manager.create(batch.values.rewind(),
+                new Shape(n), DataType.FLOAT32);
+        _inUse = batch;
+        return new NDList(boards, policies, values);
+    }
+
+    @Override
+    public void close() {
+        _producer.interrupt();
+    }
+
+    private void produce() {
+        try {
+            for (int b = 0; b < _numBatches; b += 1) {
+                Batch batch = _free.take();
+                try {
+                    fill(batch);
+                } catch (RuntimeException ex) {
+                    batch.error = ex;
+                    _ready.put(batch);
+                    return;
+                }
+                _ready.put(batch);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** samples _batchSize examples into batch */
+    private void fill(Batch batch) {
+        int actionSize = _game.actionSize();
+        for (int k = 0; k < _batchSize; k += 1) {
+            int i = _random.nextInt(_replay.size());
+            int sym = _augment
+                    ? _random.nextInt(AtaxxGame.NUM_SYMMETRIES) : 0;
+            Board board = new Board(
+                    AtaxxGame.transform(_replay.red(i), sym),
+                    AtaxxGame.transform(_replay.blue(i), sym),
+                    _replay.jumps(i), 1);
+            _game.encode(board, batch.board, 0);
+            batch.boardData.put(k * batch.board.length, batch.board);
+            int offset = k * actionSize;
+            for (int a = 0; a < actionSize; a += 1) {
+                batch.policyData.put(offset + a, 0);
+            }
+            int[] symActions = AtaxxGame.SYMMETRIC_ACTIONS[sym];
+            int numEntries = _replay.policy(i, batch.actions, batch.probs);
+            for (int e = 0; e < numEntries; e += 1) {
+                batch.policyData.put(offset + symActions[batch.actions[e]],
+                        batch.probs[e]);
+            }
+            batch.valueData.put(k, _replay.value(i));
+        }
+    }
+
+    /** direct buffers for one minibatch, with typed views to fill them
+     *  through, and scratch for one example */
+    private class Batch {
+
+        Batch() {
+            int actionSize = _game.actionSize();
+            board = new int[(int) _game.boardShape().size()];
+            boards = direct(_batchSize * board.length);
+            policies = direct(_batchSize * actionSize);
+            values = direct(_batchSize);
+            boardData = boards.asIntBuffer();
+            policyData = policies.asFloatBuffer();
+            valueData = values.asFloatBuffer();
+            actions = new int[actionSize];
+            probs = new float[actionSize];
+        }
+
+        final int[] board, actions;
+        final float[] probs;
+        final ByteBuffer boards, policies, values;
+        final IntBuffer boardData;
+        final FloatBuffer policyData, valueData;
+        RuntimeException error;
+    }
+
+    /** returns a native-order direct buffer of n 4-byte elements */
+    static ByteBuffer direct(int n) {
+        return ByteBuffer.allocateDirect(4 * n).order(ByteOrder.nativeOrder());
+    }
+
+    private final Game _game;
+    private final ReplayBuffer _replay;
+    private final boolean _augment;
+    private final Random _random;
+    private final int _batchSize, _numBatches;
+    private final BlockingQueue<Batch> _ready, _free;
+    private final Thread _producer;
+    private Batch _inUse;
+    private int _taken;
+}
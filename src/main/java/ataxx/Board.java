@@ -0,0 +1,90 @@
+package ataxx;
+
+/** Ataxx position as two 49-bit piece masks, the number of consecutive
+ *  jumps and the side to move. Square (c, r) is bit r * SIDE + c.
+ *  Keeps a Zobrist hash of itself and of its color-swapped mirror so
+ *  that flipping to the canonical form does not rehash. */
+final class Board {
+
+    Board(long red, long blue, int jumps, int turn) {
+        this(red, blue, jumps, turn,
+                AtaxxGame.zobrist(red, blue, jumps, turn),
+                AtaxxGame.zobrist(blue, red, jumps, -turn));
+    }
+
+    private Board(long red, long blue, int jumps, int turn,
+                  long hash, long flipHash) {
+        set(red, blue, jumps, turn, hash, flipHash);
+    }
+
+    /** returns an independent copy of this board */
+    Board copy() {
+        return new Board(_red, _blue, _jumps, _turn, _hash, _flipHash);
+    }
+
+    /** overwrites this board with the contents of other */
+    void copyFrom(Board other) {
+        set(other._red, other._blue, other._jumps, other._turn,
+                other._hash, other._flipHash);
+    }
+
+    /** 1 for a red piece on (c, r), -1 for blue, 0 if empty */
+    int get(int c, int r) {
+        long bit = 1L << (r * AtaxxGame.SIDE + c);
+        if ((_red & bit) != 0) {
+            return 1;
+        } else if ((_blue & bit) != 0) {
+            return -1;
+        }
+        return 0;
+    }
+
+    /** mask of player's pieces */
+    long pieces(int player) {
+        return player > 0 ? _red : _blue;
+    }
+
+    long red() {
+        return _red;
+    }
+
+    long blue() {
+        return _blue;
+    }
+
+    long empty() {
+        return ~(_red | _blue) & AtaxxGame.FULL;
+    }
+
+    int jumps() {
+        return _jumps;
+    }
+
+    /** 1 if red is to move, -1 if blue */
+    int turn() {
+        return _turn;
+    }
+
+    /** Zobrist hash of pieces, jump count and side to move */
+    long hash() {
+        return _hash;
+    }
+
+    /** hash of this board with colors and side to move swapped */
+    long flipHash() {
+        return _flipHash;
+    }
+
+    void set(long red, long blue, int jumps, int turn,
+             long hash, long flipHash) {
+        _red = red;
+        _blue = blue;
+        _jumps = jumps;
+        _turn = turn;
+        _hash = hash;
+        _flipHash = flipHash;
+    }
+
+    private long _red, _blue, _hash, _flipHash;
+    private int _jumps, _turn;
+}
@@ -9,22 +9,44 @@ import ai.djl.nn.AbstractBlock;
 import ai.djl.nn.Activation;
 import ai.djl.nn.Block;
 import ai.djl.nn.Blocks;
+import ai.djl.nn.ParallelBlock;
 import ai.djl.nn.SequentialBlock;
 import ai.djl.nn.convolutional.Conv2d;
 import ai.djl.nn.core.Linear;
 import ai.djl.nn.norm.BatchNorm;
 import ai.djl.nn.norm.Dropout;
+import ai.djl.nn.pooling.Pool;
 import ai.djl.training.ParameterStore;
 import ai.djl.util.PairList;
 
 class CNN extends AbstractBlock {
 
-    public CNN(Game game, float dropOut, int numChannels) {
+    public CNN(Game game, NetProfile profile, float dropOut) {
         super((byte) 1);
         _actionSize = game.actionSize();
         _dropOut = dropOut;
-        _numChannels = numChannels;
-        _convolutions = new SequentialBlock()
+        _numChannels = profile.channels();
+        if (profile.residual()) {
+            _trunk = new Block[]{residualTower(profile)};
+            addChildBlock("tower", _trunk[0]);
+        } else {
+            _trunk = new Block[]{convolutions(), fullyConnected()};
+            addChildBlock("convolutions", _trunk[0]);
+            addChildBlock("fullyConnectedNNet", _trunk[1]);
+        }
+        boolean flatten = profile.residual();
+        _toPolicy = profile.policyHead() == NetProfile.Head.CONV
+                ? convHead(2, (int) _actionSize)
+                : denseHead((int) _actionSize, flatten);
+        _toValue = profile.valueHead() == NetProfile.Head.CONV
+                ? convHead(1, profile.valueHidden(), 1)
+                : denseHead(1, flatten);
+        addChildBlock("toPolicy", _toPolicy);
+        addChildBlock("toValue", _toValue);
+    }
+
+    private Block convolutions() {
+        return new SequentialBlock()
                 .add(Conv2d.builder()
                         .setFilters(_numChannels)
                         .setKernelShape(new Shape(3, 3))
@@ -47,7 +69,10 @@ class CNN extends AbstractBlock {
                         .setKernelShape(new Shape(3, 3)).build())
                 .add(BatchNorm.builder().build())
                 .add(Activation::relu);
-        _fcNNet = new SequentialBlock()
+    }
+
+    private Block fullyConnected() {
+        return new SequentialBlock()
                 .add(Blocks.batchFlattenBlock())
                 .add(Linear.builder().setUnits(_numChannels * 2).build())
                 .add(BatchNorm.builder().build())
@@ -57,14 +82,85 @@ class CNN extends AbstractBlock {
                 .add(BatchNorm.builder().build())
                 .add(Activation::relu)
                 .add(Dropout.builder().optRate(_dropOut).build());
-        _toPolicy = Linear.builder()
-                .setUnits(_actionSize).build();
-        _toValue = Linear.builder()
-                .setUnits(1).build();
-        addChildBlock("convolutions", _convolutions);
-        addChildBlock("fullyConnectedNNet", _fcNNet);
-        addChildBlock("toPolicy", _toPolicy);
-        addChildBlock("toValue", _toValue);
+    }
+
+    /** 3x3 stem then profile.blocks() residual blocks, keeping the
+     *  board size */
+    private Block residualTower(NetProfile profile) {
+        SequentialBlock tower = new SequentialBlock()
+                .add(conv3x3())
+                .add(BatchNorm.builder().build())
+                .add(Activation::relu);
+        for (int i = 0; i < profile.blocks(); i += 1) {
+            SequentialBlock path = new SequentialBlock()
+                    .add(conv3x3())
+                    .add(BatchNorm.builder().build())
+                    .add(Activation::relu)
+                    .add(conv3x3())
+                    .add(BatchNorm.builder().build());
+            if (profile.seRatio() > 0) {
+                path.add(squeezeExcite(profile.seRatio()));
+            }
+            tower.add(new ParallelBlock(list -> new NDList(list.get(0)
+                            .singletonOrThrow()
+                            .add(list.get(1).singletonOrThrow())))
+                            .add(path)
+                            .add(Blocks.identityBlock()))
+                    .add(Activation::relu);
+        }
+        return tower;
+    }
+
+    /** scales each channel by a gate computed from the averages of all
+     *  channels */
+    private Block squeezeExcite(int ratio) {
+        int channels = _numChannels;
+        Block gate = new SequentialBlock()
+                .add(Pool.globalAvgPool2dBlock())
+                .add(Linear.builder().setUnits(channels / ratio).build())
+                .add(Activation::relu)
+                .add(Linear.builder().setUnits(channels).build())
+                .add(Activation::sigmoid);
+        return new ParallelBlock(list -> {
+            NDArray x = list.get(0).singletonOrThrow();
+            NDArray g = list.get(1).singletonOrThrow();
+            return new NDList(x.mul(g.reshape(-1, channels, 1, 1)));
+        }).add(Blocks.identityBlock()).add(gate);
+    }
+
+    private Block conv3x3() {
+        return Conv2d.builder()
+                .setFilters(_numChannels)
+                .setKernelShape(new Shape(3, 3))
+                .optPadding(new Shape(1, 1)).build();
+    }
+
+    /** a linear layer of units, after flattening the trunk if asked */
+    private static Block denseHead(int units, boolean flatten) {
+        Linear linear = Linear.builder().setUnits(units).build();
+        return flatten
+                ? new SequentialBlock()
+                        .add(Blocks.batchFlattenBlock()).add(linear)
+                : linear;
+    }
+
+    /** a 1x1 convolution to filters planes, then linear layers of the
+     *  given units with relu between them */
+    private static Block convHead(int filters, int... units) {
+        SequentialBlock head = new SequentialBlock()
+                .add(Conv2d.builder()
+                        .setFilters(filters)
+                        .setKernelShape(new Shape(1, 1)).build())
+                .add(BatchNorm.builder().build())
+                .add(Activation::relu)
+                .add(Blocks.batchFlattenBlock());
+        for (int i = 0; i < units.length; i += 1) {
+            if (i > 0) {
+                head.add(Activation::relu);
+            }
+            head.add(Linear.builder().setUnits(units[i]).build());
+        }
+        return head;
     }
 
     @Override
@@ -74,8 +170,9 @@ class CNN extends AbstractBlock {
             boolean training,
             PairList<String, Object> params) {
         NDList data = new NDList(inputs.get(0).toType(DataType.FLOAT32, false));
-        data = _convolutions.forward(parameterStore, data, training);
-        data = _fcNNet.forward(parameterStore, data, training);
+        for (Block block : _trunk) {
+            data = block.forward(parameterStore, data, training);
+        }
         NDList pi0 = _toPolicy.forward(parameterStore, data, training);
         NDList v0 = _toValue.forward(parameterStore, data, training);
         NDArray pi1 = pi0.get(0).logSoftmax(1);
@@ -96,10 +193,11 @@ class CNN extends AbstractBlock {
             NDManager manager,
             DataType dataType,
             Shape... inputShapes) {
-        _convolutions.initialize(manager, dataType, inputShapes);
-        Shape[] toFC = _convolutions.getOutputShapes(inputShapes);
-        _fcNNet.initialize(manager, dataType, toFC);
-        Shape[] toOut = _fcNNet.getOutputShapes(toFC);
+        Shape[] toOut = inputShapes;
+        for (Block block : _trunk) {
+            block.initialize(manager, dataType, toOut);
+            toOut = block.getOutputShapes(toOut);
+        }
         _toPolicy.initialize(manager, dataType, toOut);
         _toValue.initialize(manager, dataType, toOut);
     }
@@ -107,6 +205,6 @@ class CNN extends AbstractBlock {
     private long _actionSize;
     private float _dropOut;
     private int _numChannels;
-    private Block _convolutions, _fcNNet;
-    private Linear _toPolicy, _toValue;
+    private Block[] _trunk;
+    private Block _toPolicy, _toValue;
 }
\ No newline at end of file
@@ -0,0 +1,157 @@
+package ataxx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/** State needed to resume learning after a restart: the network
+ *  profile, the next session number, the seed of Main.RAND for it, the
+ *  game log the replay buffer is refilled from with its length at the
+ *  time and the offset of the oldest game still in the buffer, the
+ *  resignation threshold with its samples, and the network weights
+ *  with their optimizer state. Files
+ *  start with MAGIC and VERSION and are written beside their target,
+ *  forced to disk and moved over it, so a crash leaves the previous
+ *  checkpoint intact. */
+final class Checkpoint {
+
+    static final int MAGIC = 0x41434b50;
+    static final int VERSION = 4;
+
+    Checkpoint(int session, long seed, File gameLog, long gameLogLength,
+               long replayStart) {
+        _session = session;
+        _seed = seed;
+        _gameLog = gameLog;
+        _gameLogLength = gameLogLength;
+        _replayStart = replayStart;
+    }
+
+    /** writes this checkpoint with the state of resignation and nnet
+     *  to file */
+    void save(File file, Resignation resignation, NeuralNet nnet)
+            throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(stream))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            nnet.profile().write(out);
+            out.writeInt(_session);
+            out.writeLong(_seed);
+            out.writeUTF(_gameLog.getPath());
+            out.writeLong(_gameLogLength);
+            out.writeLong(_replayStart);
+            resignation.writeState(out);
+            nnet.writeState(out);
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** reads the checkpoint in file, loading its state into resignation
+     *  and nnet, which must have the checkpoint's profile */
+    static Checkpoint load(File file, Resignation resignation,
+                           NeuralNet nnet) throws IOException {
+        try (DataInputStream in = open(file)) {
+            NetProfile profile = NetProfile.read(in);
+            if (!profile.equals(nnet.profile())) {
+                throw new IOException("checkpoint has profile " + profile
+                        + ", network has " + nnet.profile());
+            }
+            int session = in.readInt();
+            long seed = in.readLong();
+            File gameLog = new File(in.readUTF());
+            long gameLogLength = in.readLong();
+            long replayStart = in.readLong();
+            resignation.readState(in);
+            nnet.readState(in);
+            return new Checkpoint(session, seed, gameLog, gameLogLength,
+                    replayStart);
+        }
+    }
+
+    /** returns the profile of the network in the checkpoint in file */
+    static NetProfile profile(File file) throws IOException {
+        try (DataInputStream in = open(file)) {
+            return NetProfile.read(in);
+        }
+    }
+
+    /** opens file and reads past its header */
+    private static DataInputStream open(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a checkpoint: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported checkpoint version "
+                        + version + ": " + file);
+            }
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+        return in;
+    }
+
+    int session() {
+        return _session;
+    }
+
+    long seed() {
+        return _seed;
+    }
+
+    File gameLog() {
+        return _gameLog;
+    }
+
+    /** bytes of the game log written before this checkpoint */
+    long gameLogLength() {
+        return _gameLogLength;
+    }
+
+    /** offset in the game log of the oldest game with examples in the
+     *  replay buffer, or 0 to refill it from the whole log */
+    long replayStart() {
+        return _replayStart;
+    }
+
+    static void writeFloats(DataOutputStream out, float[] values)
+            throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(4 * values.length);
+        bytes.asFloatBuffer().put(values);
+        out.writeInt(values.length);
+        out.write(bytes.array());
+    }
+
+    static float[] readFloats(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[4 * in.readInt()];
+        in.readFully(bytes);
+        float[] values = new float[bytes.length / 4];
+        ByteBuffer.wrap(bytes).asFloatBuffer().get(values);
+        return values;
+    }
+
+    private final int _session;
+    private final long _seed;
+    private final File _gameLog;
+    private final long _gameLogLength, _replayStart;
+}
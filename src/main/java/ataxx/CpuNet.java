@@ -0,0 +1,408 @@
+package ataxx;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Random;
+
+/** Forward pass of the classic CNN in plain Java, for evaluating small batches on
+ *  a CPU without going through the engine. Weights come from a
+ *  snapshot of a NeuralNet with every BatchNorm folded into the layer
+ *  before it, and can be quantized to int8 with one scale per output
+ *  channel. Dot products use the Vector API, so the JVM needs
+ *  --add-modules jdk.incubator.vector. */
+final class CpuNet implements Evaluator {
+
+    static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    /** bytes loaded per FLOATS vector of int8 weights, at least 64 bits */
+    static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class,
+            VectorShape.forBitSize(Math.max(64, 8 * FLOATS.length())));
+    /** epsilon of DJL's BatchNorm */
+    static final float BN_EPSILON = 1e-5f;
+    /** largest difference from the engine in a probability or value */
+    static final float TOLERANCE = 1e-3f;
+    static final float INT8_TOLERANCE = 1e-1f;
+    /** parameters per layer as the engine lists them */
+    static final int CONV_PARAMS = 2, BN_PARAMS = 4, LINEAR_PARAMS = 2;
+
+    /** exports the weights in snapshot of a CNN for game, which must
+     *  have the classic profile */
+    CpuNet(Game game, NetProfile profile, NeuralNet.Snapshot snapshot,
+           boolean int8) {
+        if (profile.residual()) {
+            throw new IllegalArgumentException(
+                    "CpuNet only runs the classic profile, not " + profile);
+        }
+        _game = game;
+        int side = (int) game.boardShape().get(1);
+        int channels = (int) game.boardShape().get(0);
+        int p = 0;
+        _convs = new Layer[4];
+        int[] paddings = {1, 1, 0, 0};
+        for (int l = 0; l < _convs.length; l += 1) {
+            _convs[l] = new Layer(snapshot, p, true, int8);
+            _convs[l].side = side;
+            _convs[l].padding = paddings[l];
+            side = side + 2 * paddings[l] - 2;
+            p += CONV_PARAMS + BN_PARAMS;
+        }
+        _fc = new Layer[2];
+        for (int l = 0; l < _fc.length; l += 1) {
+            _fc[l] = new Layer(snapshot, p, true, int8);
+            p += LINEAR_PARAMS + BN_PARAMS;
+        }
+        _toPolicy = new Layer(snapshot, p, false, int8);
+        _toValue = new Layer(snapshot, p + LINEAR_PARAMS, false, int8);
+        _inputSize = channels * (int) game.boardShape().get(1)
+                * (int) game.boardShape().get(2);
+        int maxPatches = 0, maxActivations = _inputSize;
+        for (Layer conv : _convs) {
+            int out = conv.side + 2 * conv.padding - 2;
+            maxPatches = Math.max(maxPatches, out * out * conv.in);
+            maxActivations = Math.max(maxActivations, out * out * conv.out);
+        }
+        for (Layer fc : _fc) {
+            maxActivations = Math.max(maxActivations, fc.out);
+        }
+        _encoded = new int[_inputSize];
+        _patches = new float[maxPatches];
+        _x = new float[maxActivations];
+        _y = new float[maxActivations];
+        _logits = new float[_toPolicy.out];
+    }
+
+    @Override
+    public synchronized void evaluate(Board[] boards, int n,
+                                      float[] logPolicies, float[] values) {
+        int actionSize = _toPolicy.out;
+        for (int i = 0; i < n; i += 1) {
+            forward(boards[i], logPolicies, i * actionSize);
+            values[i] = _value;
+        }
+    }
+
+    /** writes the log policy of board into logPolicies from offset and
+     *  leaves its value in _value */
+    private void forward(Board board, float[] logPolicies, int offset) {
+        _game.encode(board, _encoded, 0);
+        float[] x = _x, y = _y;
+        for (int i = 0; i < _inputSize; i += 1) {
+            x[i] = _encoded[i];
+        }
+        for (Layer conv : _convs) {
+            convolve(conv, x, y);
+            float[] t = x;
+            x = y;
+            y = t;
+        }
+        for (Layer fc : _fc) {
+            fc.dense(x, y, true);
+            float[] t = x;
+            x = y;
+            y = t;
+        }
+        _toPolicy.dense(x, _logits, false);
+        float max = Float.NEGATIVE_INFINITY;
+        for (float logit : _logits) {
+            max = Math.max(max, logit);
+        }
+        double sum = 0;
+        for (float logit : _logits) {
+            sum += Math.exp(logit - max);
+        }
+        float logSum = max + (float) Math.log(sum);
+        for (int a = 0; a < _logits.length; a += 1) {
+            logPolicies[offset + a] = _logits[a] - logSum;
+        }
+        _toValue.dense(x, y, false);
+        _value = (float) Math.tanh(y[0]);
+    }
+
+    /** applies conv and its relu to x, a [conv.in, side, side] input,
+     *  writing [conv.out, out, out] into y */
+    private void convolve(Layer conv, float[] x, float[] y) {
+        int side = conv.side, pad = conv.padding;
+        int out = side + 2 * pad - 2, positions = out * out;
+        int k = conv.in;
+        for (int oy = 0; oy < out; oy += 1) {
+            for (int ox = 0; ox < out; ox += 1) {
+                int base = (oy * out + ox) * k;
+                for (int c = 0; c < k / 9; c += 1) {
+                    for (int ky = 0; ky < 3; ky += 1) {
+                        int iy = oy + ky - pad;
+                        for (int kx = 0; kx < 3; kx += 1) {
+                            int ix = ox + kx - pad;
+                            boolean inside = iy >= 0 && iy < side
+                                    && ix >= 0 && ix < side;
+                            _patches[base + c * 9 + ky * 3 + kx] = inside
+                                    ? x[(c * side + iy) * side + ix] : 0;
+                        }
+                    }
+                }
+            }
+        }
+        for (int o = 0; o < conv.out; o += 1) {
+            int p = 0;
+            for (; p + 4 <= positions; p += 4) {
+                conv.dot4(o, _patches, p * k, _sums);
+                for (int j = 0; j < 4; j += 1) {
+                    float sum = _sums[j] + conv.bias[o];
+                    y[o * positions + p + j] = Math.max(sum, 0);
+                }
+            }
+            for (; p < positions; p += 1) {
+                float sum = conv.dot(o, _patches, p * k) + conv.bias[o];
+                y[o * positions + p] = Math.max(sum, 0);
+            }
+        }
+    }
+
+    /** prints the largest differences between nnet and CpuNet, float and
+     *  int8, on numBoards positions from random games, and the time
+     *  each takes per single-board evaluation */
+    static void benchmark(Game game, NeuralNet nnet, int numBoards,
+                          Random random) {
+        Board[] boards = randomBoards(game, numBoards, random);
+        int actionSize = game.actionSize();
+        float[] logPolicies = new float[numBoards * actionSize];
+        float[] values = new float[numBoards];
+        long nanos = timeSingles(nnet, boards, logPolicies, values);
+        System.out.println(String.format("engine: %.3f ms per board",
+                nanos / 1e6 / numBoards));
+        NeuralNet.Snapshot snapshot = nnet.snapshot();
+        for (boolean int8 : new boolean[]{false, true}) {
+            CpuNet cpu = new CpuNet(game, nnet.profile(), snapshot, int8);
+            float[] cpuLogPolicies = new float[logPolicies.length];
+            float[] cpuValues = new float[numBoards];
+            long cpuNanos = timeSingles(cpu, boards, cpuLogPolicies,
+                    cpuValues);
+            float[] diffs = maxDifferences(logPolicies, values,
+                    cpuLogPolicies, cpuValues);
+            float piDiff = diffs[0], vDiff = diffs[1];
+            float tolerance = int8 ? INT8_TOLERANCE : TOLERANCE;
+            String format = "cpu %s: %.3f ms per board, %.1fx, "
+                    + "max pi diff: %.2e, max v diff: %.2e, %s";
+            System.out.println(String.format(format,
+                    int8 ? "int8" : "float", cpuNanos / 1e6 / numBoards,
+                    (double) nanos / cpuNanos, piDiff, vDiff,
+                    Math.max(piDiff, vDiff) <= tolerance
+                            ? "within " + tolerance : "OUTSIDE " + tolerance));
+        }
+    }
+
+    /** returns the largest difference between two evaluations of the
+     *  same boards in a probability and in a value */
+    static float[] maxDifferences(float[] logPolicies, float[] values,
+                                  float[] otherLogPolicies,
+                                  float[] otherValues) {
+        float piDiff = 0, vDiff = 0;
+        for (int i = 0; i < logPolicies.length; i += 1) {
+            piDiff = Math.max(piDiff, Math.abs(
+                    (float) Math.exp(logPolicies[i])
+                            - (float) Math.exp(otherLogPolicies[i])));
+        }
+        for (int i = 0; i < values.length; i += 1) {
+            vDiff = Math.max(vDiff, Math.abs(values[i] - otherValues[i]));
+        }
+        return new float[]{piDiff, vDiff};
+    }
+
+    /** evaluates boards one at a time after a warm up pass, returning
+     *  the nanoseconds taken */
+    private static long timeSingles(Evaluator evaluator, Board[] boards,
+                                    float[] logPolicies, float[] values) {
+        int actionSize = logPolicies.length / boards.length;
+        float[] logPolicy = new float[actionSize];
+        float[] value = new float[1];
+        Board[] single = new Board[1];
+        long start = 0;
+        for (int pass = 0; pass < 2; pass += 1) {
+            start = System.nanoTime();
+            for (int i = 0; i < boards.length; i += 1) {
+                single[0] = boards[i];
+                evaluator.evaluate(single, 1, logPolicy, value);
+                System.arraycopy(logPolicy, 0, logPolicies, i * actionSize,
+                        actionSize);
+                values[i] = value[0];
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** returns canonical positions from random play */
+    static Board[] randomBoards(Game game, int n, Random random) {
+        Board[] boards = new Board[n];
+        int[] actions = new int[game.actionSize()];
+        Board board = game.initial();
+        int player = 1;
+        for (int i = 0; i < n; i += 1) {
+            if (game.value(board, player) != 0) {
+                board = game.initial();
+                player = 1;
+            }
+            boards[i] = game.canonical(board.copy(), player);
+            int numActions = game.legalActions(board, player, actions);
+            board = game.next(board, player,
+                    actions[random.nextInt(numActions)]);
+            player = -player;
+        }
+        return boards;
+    }
+
+    /** a convolution or linear layer with the BatchNorm after it folded
+     *  in, stored as out rows of in weights */
+    private static final class Layer {
+
+        /** reads the layer whose weight is parameter p of snapshot,
+         *  folding in the BatchNorm that follows it if normed */
+        Layer(NeuralNet.Snapshot snapshot, int p, boolean normed,
+              boolean int8) {
+            float[] weights = snapshot.weight(p);
+            bias = snapshot.weight(p + 1).clone();
+            out = bias.length;
+            in = weights.length / out;
+            weights = weights.clone();
+            if (normed) {
+                float[] gamma = snapshot.weight(p + 2);
+                float[] beta = snapshot.weight(p + 3);
+                float[] mean = snapshot.weight(p + 4);
+                float[] variance = snapshot.weight(p + 5);
+                for (int o = 0; o < out; o += 1) {
+                    float scale = gamma[o]
+                            / (float) Math.sqrt(variance[o] + BN_EPSILON);
+                    for (int i = 0; i < in; i += 1) {
+                        weights[o * in + i] *= scale;
+                    }
+                    bias[o] = (bias[o] - mean[o]) * scale + beta[o];
+                }
+            }
+            if (int8) {
+                quantized = new byte[weights.length];
+                scales = new float[out];
+                for (int o = 0; o < out; o += 1) {
+                    float max = 0;
+                    for (int i = 0; i < in; i += 1) {
+                        max = Math.max(max, Math.abs(weights[o * in + i]));
+                    }
+                    scales[o] = max > 0 ? max / 127 : 1;
+                    for (int i = 0; i < in; i += 1) {
+                        quantized[o * in + i] = (byte) Math.round(
+                                weights[o * in + i] / scales[o]);
+                    }
+                }
+            } else {
+                this.weights = weights;
+            }
+        }
+
+        /** returns row o of the weights dotted with x from offset */
+        float dot(int o, float[] x, int offset) {
+            return quantized != null
+                    ? scales[o] * dot(quantized, o * in, x, offset, in)
+                    : dot(weights, o * in, x, offset, in);
+        }
+
+        /** writes row o of the weights dotted with the four rows of x
+         *  of in values from offset into sums, loading each weight once */
+        void dot4(int o, float[] x, int offset, float[] sums) {
+            FloatVector s0 = FloatVector.zero(FLOATS), s1 = s0, s2 = s0, s3 = s0;
+            int w = o * in, i = 0;
+            if (quantized != null) {
+                for (; i + BYTES.length() <= in; i += FLOATS.length()) {
+                    FloatVector a = (FloatVector) ByteVector
+                            .fromArray(BYTES, quantized, w + i)
+                            .convertShape(VectorOperators.B2F, FLOATS, 0);
+                    int j = offset + i;
+                    s0 = a.fma(FloatVector.fromArray(FLOATS, x, j), s0);
+                    s1 = a.fma(FloatVector.fromArray(FLOATS, x, j + in), s1);
+                    s2 = a.fma(FloatVector.fromArray(FLOATS, x, j + 2 * in), s2);
+                    s3 = a.fma(FloatVector.fromArray(FLOATS, x, j + 3 * in), s3);
+                }
+            } else {
+                for (int bound = FLOATS.loopBound(in); i < bound;
+                     i += FLOATS.length()) {
+                    FloatVector a = FloatVector.fromArray(FLOATS, weights, w + i);
+                    int j = offset + i;
+                    s0 = a.fma(FloatVector.fromArray(FLOATS, x, j), s0);
+                    s1 = a.fma(FloatVector.fromArray(FLOATS, x, j + in), s1);
+                    s2 = a.fma(FloatVector.fromArray(FLOATS, x, j + 2 * in), s2);
+                    s3 = a.fma(FloatVector.fromArray(FLOATS, x, j + 3 * in), s3);
+                }
+            }
+            sums[0] = s0.reduceLanes(VectorOperators.ADD);
+            sums[1] = s1.reduceLanes(VectorOperators.ADD);
+            sums[2] = s2.reduceLanes(VectorOperators.ADD);
+            sums[3] = s3.reduceLanes(VectorOperators.ADD);
+            for (; i < in; i += 1) {
+                float a = quantized != null ? quantized[w + i] : weights[w + i];
+                for (int j = 0; j < 4; j += 1) {
+                    sums[j] += a * x[offset + j * in + i];
+                }
+            }
+            if (quantized != null) {
+                for (int j = 0; j < 4; j += 1) {
+                    sums[j] *= scales[o];
+                }
+            }
+        }
+
+        /** writes the layer applied to x into y, with relu if asked */
+        void dense(float[] x, float[] y, boolean relu) {
+            for (int o = 0; o < out; o += 1) {
+                float sum = dot(o, x, 0) + bias[o];
+                y[o] = relu ? Math.max(sum, 0) : sum;
+            }
+        }
+
+        static float dot(float[] w, int wOffset, float[] x, int xOffset,
+                         int length) {
+            FloatVector sum = FloatVector.zero(FLOATS);
+            int i = 0;
+            for (int bound = FLOATS.loopBound(length); i < bound;
+                 i += FLOATS.length()) {
+                FloatVector a = FloatVector.fromArray(FLOATS, w, wOffset + i);
+                FloatVector b = FloatVector.fromArray(FLOATS, x, xOffset + i);
+                sum = a.fma(b, sum);
+            }
+            float total = sum.reduceLanes(VectorOperators.ADD);
+            for (; i < length; i += 1) {
+                total += w[wOffset + i] * x[xOffset + i];
+            }
+            return total;
+        }
+
+        static float dot(byte[] w, int wOffset, float[] x, int xOffset,
+                         int length) {
+            FloatVector sum = FloatVector.zero(FLOATS);
+            int i = 0;
+            for (; i + BYTES.length() <= length; i += FLOATS.length()) {
+                FloatVector a = (FloatVector) ByteVector
+                        .fromArray(BYTES, w, wOffset + i)
+                        .convertShape(VectorOperators.B2F, FLOATS, 0);
+                FloatVector b = FloatVector.fromArray(FLOATS, x, xOffset + i);
+                sum = a.fma(b, sum);
+            }
+            float total = sum.reduceLanes(VectorOperators.ADD);
+            for (; i < length; i += 1) {
+                total += w[wOffset + i] * x[xOffset + i];
+            }
+            return total;
+        }
+
+        int in, out, side, padding;
+        float[] weights, bias, scales;
+        byte[] quantized;
+    }
+
+    private final Game _game;
+    private final Layer[] _convs, _fc;
+    private final Layer _toPolicy, _toValue;
+    private final int _inputSize;
+    private final int[] _encoded;
+    private final float[] _patches, _x, _y, _logits;
+    private final float[] _sums = new float[4];
+    private float _value;
+}
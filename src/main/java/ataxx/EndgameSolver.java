@@ -0,0 +1,165 @@
+package ataxx;
+
+import java.util.Arrays;
+
+/** Exact solver for positions with few empty squares: a negamax
+ *  search over win, draw and loss with alpha-beta pruning and a
+ *  transposition table of its own. Clones to the same square lead to
+ *  the same position, so only one is searched, and moves are tried in
+ *  order of the pieces they gain. A solve gives up after MAX_NODES
+ *  positions; results found before that stay in the table, since
+ *  they hold whatever the window they were found with. Not safe for
+ *  concurrent use. */
+final class EndgameSolver {
+
+    /** most empty squares a position may have to be solved */
+    static final int MAX_EMPTY = 3;
+    static final int MAX_NODES = 5000;
+    static final int TABLE_BITS = 15;
+    /** result of a solve that gave up */
+    static final int UNSOLVED = 2;
+
+    EndgameSolver(Game game) {
+        _game = game;
+        _keys = new long[1 << TABLE_BITS];
+        _entries = new byte[1 << TABLE_BITS];
+        _bestActions = new short[1 << TABLE_BITS];
+        _boards = new Board[0];
+        _actions = new int[0][];
+        _gains = new int[0][];
+    }
+
+    /** returns 1 if the player to move on canonical wins with best
+     *  play, -1 if it loses, 0 for a draw, or UNSOLVED if that could
+     *  not be settled within MAX_NODES */
+    int solve(Board canonical) {
+        _nodes = 0;
+        _aborted = false;
+        int value = negamax(canonical, 0, -1, 1);
+        Metrics.SOLVER_NODES.record(_nodes);
+        (_aborted ? Metrics.UNSOLVED : Metrics.SOLVED).add(1);
+        return _aborted ? UNSOLVED : value;
+    }
+
+    /** returns the value of canonical for the player to move if it is
+     *  within alpha and beta, otherwise a bound beyond them */
+    private int negamax(Board canonical, int ply, int alpha, int beta) {
+        float terminal = _game.value(canonical, 1);
+        if (terminal != 0) {
+            return terminal >= 1 ? 1 : terminal <= -1 ? -1 : 0;
+        }
+        if (_nodes == MAX_NODES) {
+            _aborted = true;
+            return 0;
+        }
+        _nodes += 1;
+        long key = canonical.hash();
+        int slot = (int) key & (_keys.length - 1), tableAction = -1;
+        if (_keys[slot] == key && _entries[slot] != 0) {
+            tableAction = _bestActions[slot];
+            int value = (_entries[slot] & 3) - 1, bound = _entries[slot] >> 2;
+            if (bound == EXACT) {
+                return value;
+            } else if (bound == LOWER) {
+                alpha = Math.max(alpha, value);
+            } else {
+                beta = Math.min(beta, value);
+            }
+            if (alpha >= beta) {
+                return value;
+            }
+        }
+        if (ply + 1 >= _boards.length) {
+            grow(ply + 2);
+        }
+        int[] actions = _actions[ply];
+        int n = orderedMoves(canonical, actions, _gains[ply], tableAction);
+        int best = -1, bestAction = actions[0], alphaIn = alpha;
+        Board child = _boards[ply + 1];
+        for (int i = 0; i < n && alpha < beta; i += 1) {
+            child.copyFrom(canonical);
+            _game.next(child, 1, actions[i]);
+            _game.canonical(child, -1);
+            int value = -negamax(child, ply + 1, -beta, -alpha);
+            if (_aborted) {
+                return 0;
+            }
+            if (value > best) {
+                best = value;
+                bestAction = actions[i];
+            }
+            alpha = Math.max(alpha, value);
+        }
+        int bound = best <= alphaIn ? UPPER : best >= beta ? LOWER : EXACT;
+        _keys[slot] = key;
+        _entries[slot] = (byte) (bound << 2 | (best + 1));
+        _bestActions[slot] = (short) bestAction;
+        return best;
+    }
+
+    /** writes the moves of the player to move on canonical, which must
+     *  not be over, into actions: first tableAction if it is one of
+     *  them, then one clone per empty square in reach and the jumps,
+     *  most gaining first, or a pass if there are none; returns their
+     *  number */
+    private int orderedMoves(Board canonical, int[] actions, int[] gains,
+                             int tableAction) {
+        long own = canonical.pieces(1), opponent = canonical.pieces(-1);
+        long empty = canonical.empty(), cloned = 0;
+        int n = 0;
+        for (long pieces = own; pieces != 0; pieces &= pieces - 1) {
+            int from = Long.numberOfTrailingZeros(pieces);
+            long clones = AtaxxGame.NEIGHBORS[from] & empty & ~cloned;
+            cloned |= clones;
+            long targets = clones | AtaxxGame.JUMPS[from] & empty;
+            for (; targets != 0; targets &= targets - 1) {
+                int to = Long.numberOfTrailingZeros(targets);
+                int action = AtaxxGame.ACTIONS[from * AtaxxGame.AREA + to];
+                int gain = action == tableAction ? AtaxxGame.AREA
+                        : Long.bitCount(AtaxxGame.NEIGHBORS[to] & opponent)
+                        + ((clones & (1L << to)) != 0 ? 1 : 0);
+                int j = n;
+                for (; j > 0 && gains[j - 1] < gain; j -= 1) {
+                    actions[j] = actions[j - 1];
+                    gains[j] = gains[j - 1];
+                }
+                actions[j] = action;
+                gains[j] = gain;
+                n += 1;
+            }
+        }
+        if (n == 0) {
+            actions[0] = 0;
+            n = 1;
+        }
+        return n;
+    }
+
+    /** makes room for plies up to depth */
+    private void grow(int depth) {
+        int old = _boards.length;
+        _boards = Arrays.copyOf(_boards, depth * 2);
+        _actions = Arrays.copyOf(_actions, depth * 2);
+        _gains = Arrays.copyOf(_gains, depth * 2);
+        for (int d = old; d < _boards.length; d += 1) {
+            _boards[d] = _game.initial();
+            _actions[d] = new int[_game.actionSize()];
+            _gains[d] = new int[_game.actionSize()];
+        }
+    }
+
+    /** kinds of table entry: the value itself, or a bound on it */
+    private static final int EXACT = 1, LOWER = 2, UPPER = 3;
+
+    private final Game _game;
+    /** hash, packed (bound << 2 | value + 1) and best action of each
+     *  table slot */
+    private final long[] _keys;
+    private final byte[] _entries;
+    private final short[] _bestActions;
+    /** scratch position, moves and gains by ply */
+    private Board[] _boards;
+    private int[][] _actions, _gains;
+    private int _nodes;
+    private boolean _aborted;
+}
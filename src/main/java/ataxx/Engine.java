@@ -0,0 +1,440 @@
+package ataxx;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/** Plays as an engine over UAI, the Ataxx dialect of the UCI text
+ *  protocol: commands arrive one per line on an input stream and
+ *  replies go to an output stream. Each go runs one MCTS search on a
+ *  thread of its own until its node budget, its share of the clock or
+ *  a stop command ends it. The search tree outlives the move, so after
+ *  the opponent replies the search resumes from the subtree it already
+ *  built. Under go ponder the engine searches the position after its
+ *  expected reply on the opponent's time, and on ponderhit keeps that
+ *  search going with the move's own time budget.
+ *
+ *  Squares are named a1 to g7 with a1 at (0, 0); a move is its
+ *  destination if it clones, source then destination if it jumps,
+ *  and 0000 if it passes. In FENs x stands for red, which moves first
+ *  and plays on black's clock (btime, binc), and o for blue. */
+final class Engine {
+
+    static final String NAME = "alpha-zero-ataxx";
+    /** time kept back from every move for reading and writing moves */
+    static final long MOVE_OVERHEAD_MILLIS = 50;
+    /** moves still to play assumed when the clock does not say */
+    static final int MOVES_TO_GO = 30;
+    /** longest principal variation reported */
+    static final int MAX_PV = 16;
+    static final int DEFAULT_HASH_MB = (int) (MCTS.MAX_TREE_BYTES >> 20);
+    static final int MAX_HASH_MB = 16384, MAX_THREADS = 256, MAX_BATCH = 256;
+
+    Engine(AtaxxGame game, Evaluator evaluator) {
+        _game = game;
+        _evaluator = evaluator;
+        _board = game.initial();
+        _hashMB = DEFAULT_HASH_MB;
+        _threads = 1;
+        _batchSize = 1;
+        _pv = new int[MAX_PV];
+        newTree();
+    }
+
+    /** answers commands read from in on out until quit or the end of
+     *  in */
+    void run(BufferedReader in, PrintStream out) throws IOException {
+        _out = out;
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] words = line.trim().split("\\s+");
+            switch (words[0]) {
+                case "":
+                    break;
+                case "uai":
+                    out.println("id name " + NAME);
+                    out.println("option name Hash type spin default "
+                            + DEFAULT_HASH_MB + " min 1 max " + MAX_HASH_MB);
+                    out.println("option name Threads type spin default 1 "
+                            + "min 1 max " + MAX_THREADS);
+                    out.println("option name BatchSize type spin default 1 "
+                            + "min 1 max " + MAX_BATCH);
+                    out.println("option name Ponder type check default false");
+                    out.println("uaiok");
+                    break;
+                case "isready":
+                    out.println("readyok");
+                    break;
+                case "setoption":
+                    finishSearch();
+                    setOption(words);
+                    break;
+                case "uainewgame":
+                    finishSearch();
+                    _mcts.clear();
+                    _board = _game.initial();
+                    break;
+                case "position":
+                    finishSearch();
+                    position(words);
+                    break;
+                case "go":
+                    finishSearch();
+                    go(words);
+                    break;
+                case "ponderhit":
+                    ponderHit();
+                    break;
+                case "stop":
+                    finishSearch();
+                    break;
+                case "quit":
+                    finishSearch();
+                    return;
+                default:
+                    out.println("info string unknown command " + words[0]);
+            }
+        }
+        finishSearch();
+    }
+
+    /** handles setoption name <name> value <value> */
+    private void setOption(String[] words) {
+        if (words.length < 3 || !words[1].equals("name")) {
+            return;
+        }
+        String name = words[2];
+        String value = words.length >= 5 && words[3].equals("value")
+                ? words[4] : "";
+        try {
+            switch (name) {
+                case "Hash":
+                    _hashMB = clamp(Integer.parseInt(value), 1, MAX_HASH_MB);
+                    newTree();
+                    break;
+                case "Threads":
+                    _threads = clamp(Integer.parseInt(value), 1, MAX_THREADS);
+                    newTree();
+                    break;
+                case "BatchSize":
+                    _batchSize = clamp(Integer.parseInt(value), 1, MAX_BATCH);
+                    newTree();
+                    break;
+                case "Ponder":
+                    _ponder = value.equals("true");
+                    break;
+                default:
+                    _out.println("info string unknown option " + name);
+            }
+        } catch (NumberFormatException ex) {
+            _out.println("info string bad value for " + name + ": " + value);
+        }
+    }
+
+    /** handles position (startpos | fen <fen>) [moves <move>...] */
+    private void position(String[] words) {
+        int i = 2;
+        Board board;
+        if (words.length >= 2 && words[1].equals("startpos")) {
+            board = _game.initial();
+        } else if (words.length >= 3 && words[1].equals("fen")) {
+            while (i < words.length && !words[i].equals("moves")) {
+                i += 1;
+            }
+            board = parseFen(Arrays.copyOfRange(words, 2, i));
+            if (board == null) {
+                _out.println("info string bad fen");
+                return;
+            }
+        } else {
+            _out.println("info string bad position");
+            return;
+        }
+        if (i < words.length && words[i].equals("moves")) {
+            for (i += 1; i < words.length; i += 1) {
+                int action = parseMove(_game, board, words[i]);
+                if (action < 0) {
+                    _out.println("info string illegal move " + words[i]);
+                    break;
+                }
+                _game.next(board, board.turn(), action);
+            }
+        }
+        _board = board;
+    }
+
+    /** handles go with any of wtime, btime, winc, binc, movestogo,
+     *  movetime, nodes, infinite and ponder, starting a search */
+    private void go(String[] words) {
+        long time = -1, inc = 0, moveTime = -1;
+        int movesToGo = MOVES_TO_GO, nodes = Integer.MAX_VALUE;
+        boolean infinite = false, ponder = false;
+        String ownTime = _board.turn() > 0 ? "btime" : "wtime";
+        String ownInc = _board.turn() > 0 ? "binc" : "winc";
+        try {
+            for (int i = 1; i < words.length; i += 1) {
+                String word = words[i];
+                if (word.equals("infinite")) {
+                    infinite = true;
+                } else if (word.equals("ponder")) {
+                    ponder = true;
+                } else if (i + 1 < words.length) {
+                    i += 1;
+                    long number = Long.parseLong(words[i]);
+                    if (word.equals(ownTime)) {
+                        time = number;
+                    } else if (word.equals(ownInc)) {
+                        inc = number;
+                    } else if (word.equals("movestogo")) {
+                        movesToGo = (int) Math.max(number, 1);
+                    } else if (word.equals("movetime")) {
+                        moveTime = number;
+                    } else if (word.equals("nodes")) {
+                        nodes = (int) Math.min(Math.max(number, 1),
+                                Integer.MAX_VALUE);
+                    }
+                }
+            }
+        } catch (NumberFormatException ex) {
+            _out.println("info string bad go");
+            return;
+        }
+        long budget = -1;
+        if (moveTime >= 0) {
+            budget = Math.max(moveTime - MOVE_OVERHEAD_MILLIS, 1);
+        } else if (time >= 0) {
+            budget = budgetMillis(time, inc, movesToGo);
+        }
+        _budgetNanos = infinite || budget < 0 ? -1 : budget * 1000000;
+        _pondering = ponder;
+        _mcts.deadline(ponder ? Long.MAX_VALUE : deadline());
+        Board canonical = _game.canonical(_board.copy(), _board.turn());
+        int maxSims = nodes;
+        _searcher = new Thread(() -> search(canonical, maxSims), "search");
+        _searcher.setDaemon(true);
+        _searcher.start();
+    }
+
+    /** switches a ponder search to the move's own time budget */
+    private synchronized void ponderHit() {
+        if (_pondering) {
+            _mcts.deadline(deadline());
+            _pondering = false;
+            notifyAll();
+        }
+    }
+
+    /** stops any search in progress and waits for its bestmove */
+    private void finishSearch() {
+        if (_searcher == null) {
+            return;
+        }
+        synchronized (this) {
+            _pondering = false;
+            notifyAll();
+        }
+        _mcts.stop();
+        try {
+            _searcher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        _searcher = null;
+    }
+
+    /** searches canonical for up to maxSims simulations and reports the
+     *  result, holding bestmove back while pondering */
+    private void search(Board canonical, int maxSims) {
+        long start = System.nanoTime();
+        int sims = _mcts.simulate(canonical, maxSims);
+        synchronized (this) {
+            while (_pondering) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        long millis = Math.max((System.nanoTime() - start) / 1000000, 1);
+        int n = _mcts.principalVariation(canonical, _pv);
+        StringBuilder info = new StringBuilder();
+        info.append("info depth ").append(n)
+                .append(" nodes ").append(sims)
+                .append(" time ").append(millis)
+                .append(" nps ").append(sims * 1000L / millis)
+                .append(" score cp ")
+                .append(Math.round(_mcts.value(canonical) * 100));
+        if (n > 0) {
+            info.append(" pv");
+            for (int i = 0; i < n; i += 1) {
+                info.append(' ').append(moveString(_pv[i]));
+            }
+        }
+        _out.println(info);
+        int best = n > 0 ? _pv[0] : Arena.argMax(_mcts.visits(canonical));
+        _out.println("bestmove " + moveString(best)
+                + (_ponder && n > 1 ? " ponder " + moveString(_pv[1]) : ""));
+    }
+
+    /** System.nanoTime at which the current move must end */
+    private long deadline() {
+        return _budgetNanos < 0
+                ? Long.MAX_VALUE : System.nanoTime() + _budgetNanos;
+    }
+
+    /** replaces the search tree with an empty one of the current
+     *  size and thread settings, ending searches once the best move is
+     *  settled so the time saved goes to later moves */
+    private void newTree() {
+        if (_mcts != null) {
+            _mcts.close();
+        }
+        _mcts = new MCTS(_game, _evaluator, _batchSize, _threads,
+                (long) _hashMB << 20, Main.RAND);
+        _mcts.earlyStop(true);
+    }
+
+    /** milliseconds to spend on a move with time left on the clock,
+     *  inc added after it and movesToGo moves left to play */
+    static long budgetMillis(long time, long inc, int movesToGo) {
+        long usable = Math.max(time - MOVE_OVERHEAD_MILLIS, 1);
+        return Math.max(Math.min(usable / movesToGo + inc, usable / 2), 1);
+    }
+
+    /** returns the position in the fields of a UAI FEN, or null if it
+     *  is not one; the halfmove clock counts towards
+     *  AtaxxGame.JUMP_LIMIT and blocked squares are not supported */
+    static Board parseFen(String[] fields) {
+        if (fields.length < 2) {
+            return null;
+        }
+        String[] rows = fields[0].split("/");
+        if (rows.length != AtaxxGame.SIDE) {
+            return null;
+        }
+        long red = 0, blue = 0;
+        for (int i = 0; i < rows.length; i += 1) {
+            int r = AtaxxGame.SIDE - 1 - i, c = 0;
+            for (char ch : rows[i].toCharArray()) {
+                if (ch >= '1' && ch <= '7') {
+                    c += ch - '0';
+                    continue;
+                }
+                if (c >= AtaxxGame.SIDE) {
+                    return null;
+                } else if (ch == 'x') {
+                    red |= AtaxxGame.bit(c, r);
+                } else if (ch == 'o') {
+                    blue |= AtaxxGame.bit(c, r);
+                } else {
+                    return null;
+                }
+                c += 1;
+            }
+            if (c != AtaxxGame.SIDE) {
+                return null;
+            }
+        }
+        int turn;
+        if (fields[1].equals("x")) {
+            turn = 1;
+        } else if (fields[1].equals("o")) {
+            turn = -1;
+        } else {
+            return null;
+        }
+        int jumps = 0;
+        if (fields.length >= 3) {
+            try {
+                jumps = Integer.parseInt(fields[2]);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            jumps = clamp(jumps, 0, AtaxxGame.JUMP_LIMIT);
+        }
+        return new Board(red, blue, jumps, turn);
+    }
+
+    /** returns the action for move by the side to move on board, or -1
+     *  if it is not legal there */
+    static int parseMove(Game game, Board board, String move) {
+        int action;
+        if (move.equals("0000")) {
+            action = 0;
+        } else if (move.length() == 2) {
+            int to = parseSquare(move, 0);
+            long sources = to < 0 ? 0
+                    : AtaxxGame.NEIGHBORS[to] & board.pieces(board.turn());
+            if (sources == 0) {
+                return -1;
+            }
+            int from = Long.numberOfTrailingZeros(sources);
+            action = AtaxxGame.ACTIONS[from * AtaxxGame.AREA + to];
+        } else if (move.length() == 4) {
+            int from = parseSquare(move, 0), to = parseSquare(move, 2);
+            if (from < 0 || to < 0) {
+                return -1;
+            }
+            action = AtaxxGame.ACTIONS[from * AtaxxGame.AREA + to];
+            if (action == 0) {
+                return -1;
+            }
+        } else {
+            return -1;
+        }
+        int[] actions = new int[game.actionSize()];
+        int n = game.legalActions(board, board.turn(), actions);
+        for (int i = 0; i < n; i += 1) {
+            if (actions[i] == action) {
+                return action;
+            }
+        }
+        return -1;
+    }
+
+    /** returns action in UAI notation */
+    static String moveString(int action) {
+        if (action == 0) {
+            return "0000";
+        }
+        int from = AtaxxGame.FROM[action], to = AtaxxGame.TO[action];
+        if ((AtaxxGame.NEIGHBORS[from] & (1L << to)) != 0) {
+            return squareString(to);
+        }
+        return squareString(from) + squareString(to);
+    }
+
+    static String squareString(int square) {
+        return "" + (char) ('a' + square % AtaxxGame.SIDE)
+                + (char) ('1' + square / AtaxxGame.SIDE);
+    }
+
+    /** returns the square named at offset of move, or -1 */
+    static int parseSquare(String move, int offset) {
+        int c = move.charAt(offset) - 'a', r = move.charAt(offset + 1) - '1';
+        if (c < 0 || c >= AtaxxGame.SIDE || r < 0 || r >= AtaxxGame.SIDE) {
+            return -1;
+        }
+        return AtaxxGame.square(c, r);
+    }
+
+    static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private AtaxxGame _game;
+    private Evaluator _evaluator;
+    private MCTS _mcts;
+    private Board _board;
+    private PrintStream _out;
+    private Thread _searcher;
+    private int[] _pv;
+    private int _hashMB, _threads, _batchSize;
+    private boolean _ponder;
+    /** time budget of the current move, -1 for none */
+    private volatile long _budgetNanos;
+    private boolean _pondering;
+}
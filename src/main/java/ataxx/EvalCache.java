@@ -0,0 +1,188 @@
+package ataxx;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Bounded least-recently-used cache of network results in front of
+ *  another Evaluator, meant to be shared by every search of a session.
+ *  Each board is stored under the smallest hash among its 8 rotations
+ *  and reflections, with its policy permuted to that orientation, so
+ *  symmetric positions share one entry. The cache empties itself when
+ *  the version of the network changes. */
+final class EvalCache implements Evaluator {
+
+    static final int CACHE_SIZE = 1 << 14;
+
+    EvalCache(Game game, Evaluator network) {
+        this(game, network, CACHE_SIZE);
+    }
+
+    EvalCache(Game game, Evaluator network, int maxEntries) {
+        _network = network;
+        _actionSize = game.actionSize();
+        _version = network.version();
+        _entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> e) {
+                return size() > maxEntries;
+            }
+        };
+        _hits = new LongAdder();
+        _misses = new LongAdder();
+    }
+
+    @Override
+    public void evaluate(Board[] boards, int n,
+                         float[] logPolicies, float[] values) {
+        long version = _network.version();
+        synchronized (this) {
+            if (version != _version) {
+                _entries.clear();
+                _version = version;
+            }
+        }
+        int[] syms = new int[n], misses = new int[n];
+        Entry[] keys = new Entry[n];
+        int numMisses = 0;
+        for (int i = 0; i < n; i += 1) {
+            syms[i] = minSymmetry(boards[i]);
+            keys[i] = new Entry(boards[i], syms[i]);
+            Entry entry;
+            synchronized (this) {
+                entry = _entries.get(keys[i].hash);
+            }
+            if (entry != null && entry.matches(keys[i])) {
+                int[] actions = AtaxxGame.SYMMETRIC_ACTIONS[syms[i]];
+                for (int a = 0; a < _actionSize; a += 1) {
+                    logPolicies[i * _actionSize + a] =
+                            entry.logPolicy[actions[a]];
+                }
+                values[i] = entry.value;
+            } else {
+                misses[numMisses] = i;
+                numMisses += 1;
+            }
+        }
+        _hits.add(n - numMisses);
+        _misses.add(numMisses);
+        Metrics.CACHE_HITS.add(n - numMisses);
+        Metrics.CACHE_LOOKUPS.add(n);
+        if (numMisses == 0) {
+            return;
+        }
+        Board[] missBoards = new Board[numMisses];
+        for (int k = 0; k < numMisses; k += 1) {
+            missBoards[k] = boards[misses[k]];
+        }
+        float[] missPolicies = new float[numMisses * _actionSize];
+        float[] missValues = new float[numMisses];
+        _network.evaluate(missBoards, numMisses, missPolicies, missValues);
+        boolean current = _network.version() == version;
+        for (int k = 0; k < numMisses; k += 1) {
+            int i = misses[k];
+            System.arraycopy(missPolicies, k * _actionSize,
+                    logPolicies, i * _actionSize, _actionSize);
+            values[i] = missValues[k];
+            if (!current) {
+                continue;
+            }
+            Entry entry = keys[i];
+            entry.logPolicy = new float[_actionSize];
+            int[] actions = AtaxxGame.SYMMETRIC_ACTIONS[syms[i]];
+            for (int a = 0; a < _actionSize; a += 1) {
+                entry.logPolicy[actions[a]] =
+                        missPolicies[k * _actionSize + a];
+            }
+            entry.value = missValues[k];
+            synchronized (this) {
+                if (_version == version) {
+                    _entries.put(entry.hash, entry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long version() {
+        return _network.version();
+    }
+
+    /** returns the fraction of lookups answered from the cache */
+    float hitRate() {
+        long hits = _hits.sum(), lookups = hits + _misses.sum();
+        return lookups == 0 ? 0 : (float) hits / lookups;
+    }
+
+    /** returns cache occupancy and hit statistics */
+    String report() {
+        int size;
+        synchronized (this) {
+            size = _entries.size();
+        }
+        long hits = _hits.sum(), lookups = hits + _misses.sum();
+        return String.format("entries: %d, hits: %d/%d (%.1f%%)",
+                size, hits, lookups, 100f * hitRate());
+    }
+
+    /** returns the symmetry taking board to its smallest hash */
+    private static int minSymmetry(Board board) {
+        long[] hashes = new long[AtaxxGame.NUM_SYMMETRIES];
+        for (int sym = 0; sym < hashes.length; sym += 1) {
+            hashes[sym] = AtaxxGame.JUMP_KEYS[board.jumps()]
+                    ^ (board.turn() < 0 ? AtaxxGame.TURN_KEY : 0);
+        }
+        for (long b = board.red(); b != 0; b &= b - 1) {
+            int s = Long.numberOfTrailingZeros(b);
+            for (int sym = 0; sym < hashes.length; sym += 1) {
+                hashes[sym] ^= AtaxxGame.RED_KEYS[
+                        AtaxxGame.SYMMETRIC_SQUARES[sym][s]];
+            }
+        }
+        for (long b = board.blue(); b != 0; b &= b - 1) {
+            int s = Long.numberOfTrailingZeros(b);
+            for (int sym = 0; sym < hashes.length; sym += 1) {
+                hashes[sym] ^= AtaxxGame.BLUE_KEYS[
+                        AtaxxGame.SYMMETRIC_SQUARES[sym][s]];
+            }
+        }
+        int best = 0;
+        for (int sym = 1; sym < hashes.length; sym += 1) {
+            if (hashes[sym] < hashes[best]) {
+                best = sym;
+            }
+        }
+        return best;
+    }
+
+    /** a board in its smallest-hash orientation and, once evaluated,
+     *  its network output in that orientation */
+    private static class Entry {
+
+        Entry(Board board, int sym) {
+            red = AtaxxGame.transform(board.red(), sym);
+            blue = AtaxxGame.transform(board.blue(), sym);
+            jumps = board.jumps();
+            turn = board.turn();
+            hash = AtaxxGame.zobrist(red, blue, jumps, turn);
+        }
+
+        /** true if other is the same position, guarding against hash
+         *  collisions */
+        boolean matches(Entry other) {
+            return red == other.red && blue == other.blue
+                    && jumps == other.jumps && turn == other.turn;
+        }
+
+        final long red, blue, hash;
+        final int jumps, turn;
+        float[] logPolicy;
+        float value;
+    }
+
+    private final Evaluator _network;
+    private final int _actionSize;
+    private final Map<Long, Entry> _entries;
+    private final LongAdder _hits, _misses;
+    private long _version;
+}
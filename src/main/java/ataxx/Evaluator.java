@@ -0,0 +1,14 @@
+package ataxx;
+
+interface Evaluator {
+
+    /** writes the network log policies of the first n canonical boards
+     *  to logPolicies, actionSize entries per board, and their values
+     *  to values */
+    void evaluate(Board[] boards, int n, float[] logPolicies, float[] values);
+
+    /** changes whenever the results of evaluate may have changed */
+    default long version() {
+        return 0;
+    }
+}
@@ -1,16 +1,13 @@
-
 package ataxx;
 
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.types.Shape;
 
-import java.util.ArrayList;
-
 interface Game {
 
     /** starting state of the board */
-    NDArray initial(NDManager ndmanager);
+    Board initial();
 
     /** returns total number of possible actions */
     int actionSize();
@@ -20,20 +17,29 @@ interface Game {
 
     /** 1 if player won on board, -1 if lost, 0 if in progress,
      *  small positive value if drawn */
-    float value(NDArray board, int player);
+    float value(Board board, int player);
 
     /** player takes action on board (in place) */
-    NDArray next(NDArray board, int player, int action);
+    Board next(Board board, int player, int action);
 
     /** flips board if player is opponent (in place) */
-    NDArray canonical(NDArray board, int player);
+    Board canonical(Board board, int player);
+
+    /** writes all moves available to player on board into actions,
+     *  returns the number of moves written */
+    int legalActions(Board board, int player, int[] actions);
+
+    /** writes board as network input into data from offset, filling
+     *  as many entries as boardShape has */
+    void encode(Board board, int[] data, int offset);
 
-    /** returns all moves available to player on board */
-    NDArray legalActions(NDArray board, int player);
+    /** returns board as a network input array on manager */
+    NDArray toNDArray(Board board, NDManager manager);
 
-    /** returns string representation of board */
-    String repr(NDArray board);
+    /** returns the first n boards stacked as one batch of network
+     *  inputs on manager */
+    NDArray toNDArray(Board[] boards, int n, NDManager manager);
 
     /** returns readable display string of board */
-    String str(NDArray board);
+    String str(Board board);
 }
@@ -0,0 +1,108 @@
+package ataxx;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/** Streams training examples out of a file of game records. Only the
+ *  current game is held in memory; its positions are rebuilt by
+ *  replaying its moves as each example is read. */
+final class GameReader implements AutoCloseable {
+
+    GameReader(Game game, File file) throws IOException {
+        this(game, file, 0);
+    }
+
+    /** reads from the record at offset start in file, or from the first
+     *  if start is 0 */
+    GameReader(Game game, File file, long start) throws IOException {
+        _game = game;
+        FileInputStream stream = new FileInputStream(file);
+        DataInputStream header = new DataInputStream(stream);
+        try {
+            if (header.readInt() != GameRecord.MAGIC
+                    || header.readInt() != GameRecord.VERSION) {
+                throw new IOException("not a game record file: " + file);
+            }
+            _offset = Math.max(start, GameRecord.HEADER_BYTES);
+            stream.getChannel().position(_offset);
+        } catch (IOException ex) {
+            stream.close();
+            throw ex;
+        }
+        _in = new DataInputStream(new BufferedInputStream(stream));
+    }
+
+    /** moves to the next example, returning false after the last one;
+     *  moves without a policy are replayed but skipped */
+    boolean next() throws IOException {
+        while (true) {
+            while (_record == null || _move == _record.numMoves()) {
+                _recordOffset = _offset;
+                _record = GameRecord.read(_in, _game.actionSize());
+                if (_record == null) {
+                    return false;
+                }
+                _offset += _record.fileBytes();
+                _gamesRead += 1;
+                _board = _game.initial();
+                _player = 1;
+                _move = 0;
+            }
+            float[] policy = _record.policy(_move);
+            if (policy != null) {
+                _canonical = _game.canonical(_board.copy(), _player);
+                _policy = policy;
+                _value = _player * _record.result();
+            }
+            _board = _game.next(_board, _player, _record.action(_move));
+            _player = -_player;
+            _move += 1;
+            if (policy != null) {
+                return true;
+            }
+        }
+    }
+
+    /** current position from the view of the player to move */
+    Board canonical() {
+        return _canonical;
+    }
+
+    /** search policy at the current position */
+    float[] policy() {
+        return _policy;
+    }
+
+    /** final result of the game for the player to move */
+    float value() {
+        return _value;
+    }
+
+    long gamesRead() {
+        return _gamesRead;
+    }
+
+    /** offset in the file of the game the current example is from */
+    long recordOffset() {
+        return _recordOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        _in.close();
+    }
+
+    private final Game _game;
+    private final DataInputStream _in;
+    private GameRecord _record;
+    private Board _board, _canonical;
+    private float[] _policy;
+    private float _value;
+    private int _player, _move;
+    private long _gamesRead;
+    /** offsets of the current record and of the next */
+    private long _recordOffset, _offset;
+}
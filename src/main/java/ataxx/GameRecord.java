@@ -0,0 +1,236 @@
+package ataxx;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Moves, search policies and result of one game. In a game file each
+ *  record is its length in bytes followed by the number of moves, the
+ *  result for red and, per move, the action taken and the nonzero
+ *  policy entries as (action, probability) pairs. A move with no
+ *  entries was searched only to be played and is not an example.
+ *  Files start with MAGIC and VERSION and are only ever appended to,
+ *  after cutting off any record a crash left incomplete. */
+final class GameRecord {
+
+    static final int MAGIC = 0x41545847;
+    static final int VERSION = 1;
+    /** bytes of MAGIC and VERSION, where the first record starts */
+    static final int HEADER_BYTES = 8;
+    /** longest record accepted when reading */
+    static final int MAX_RECORD_BYTES = 1 << 24;
+
+    GameRecord() {
+        _actions = new ArrayList<>();
+        _policies = new ArrayList<>();
+    }
+
+    /** records that action was played after a search giving policy,
+     *  or null if the position is not a training example */
+    void add(int action, float[] policy) {
+        _actions.add(action);
+        _policies.add(policy);
+    }
+
+    /** records the final value of the game for red */
+    void finish(float result) {
+        _result = result;
+    }
+
+    int numMoves() {
+        return _actions.size();
+    }
+
+    int action(int i) {
+        return _actions.get(i);
+    }
+
+    /** search policy of move i, or null if it is not an example */
+    float[] policy(int i) {
+        return _policies.get(i);
+    }
+
+    float result() {
+        return _result;
+    }
+
+    /** returns the number of bytes write takes for this record */
+    int fileBytes() {
+        int bytes = 4 + 2 + 4;
+        for (float[] policy : _policies) {
+            bytes += 4;
+            if (policy != null) {
+                for (float p : policy) {
+                    bytes += p != 0 ? 6 : 0;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /** replays the game from game's initial board, adding each canonical
+     *  position that has a policy with it and the result to replay */
+    void addTo(Game game, ReplayBuffer replay) {
+        Board board = game.initial();
+        int player = 1;
+        for (int i = 0; i < numMoves(); i += 1) {
+            if (policy(i) != null) {
+                Board canonical = game.canonical(board.copy(), player);
+                replay.add(canonical, policy(i), player * _result);
+            }
+            board = game.next(board, player, action(i));
+            player = -player;
+        }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeShort(numMoves());
+        data.writeFloat(_result);
+        for (int i = 0; i < numMoves(); i += 1) {
+            float[] policy = policy(i) != null ? policy(i) : new float[0];
+            int numEntries = 0;
+            for (float p : policy) {
+                numEntries += p != 0 ? 1 : 0;
+            }
+            data.writeShort(action(i));
+            data.writeShort(numEntries);
+            for (int a = 0; a < policy.length; a += 1) {
+                if (policy[a] != 0) {
+                    data.writeShort(a);
+                    data.writeFloat(policy[a]);
+                }
+            }
+        }
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    /** reads the next record from in, returning null at the end of the
+     *  file or at a record cut short by a crash, and throwing if the
+     *  record is complete but does not hold a valid game */
+    static GameRecord read(DataInputStream in, int actionSize)
+            throws IOException {
+        byte[] bytes;
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_RECORD_BYTES) {
+                return null;
+            }
+            bytes = new byte[length];
+            in.readFully(bytes);
+        } catch (EOFException ex) {
+            return null;
+        }
+        DataInputStream data = new DataInputStream(
+                new ByteArrayInputStream(bytes));
+        GameRecord record = new GameRecord();
+        try {
+            int numMoves = data.readUnsignedShort();
+            record.finish(data.readFloat());
+            for (int i = 0; i < numMoves; i += 1) {
+                int action = data.readUnsignedShort();
+                int numEntries = data.readUnsignedShort();
+                if (action >= actionSize || numEntries > actionSize) {
+                    throw new IOException("corrupt record");
+                }
+                float[] policy = numEntries > 0 ? new float[actionSize] : null;
+                for (int e = 0; e < numEntries; e += 1) {
+                    int a = data.readUnsignedShort();
+                    if (a >= actionSize) {
+                        throw new IOException("corrupt record");
+                    }
+                    policy[a] = data.readFloat();
+                }
+                record.add(action, policy);
+            }
+        } catch (EOFException ex) {
+            throw new IOException("corrupt record", ex);
+        }
+        if (data.available() != 0) {
+            throw new IOException("corrupt record");
+        }
+        return record;
+    }
+
+    /** appends records to file, starting it with a header if new and
+     *  first cutting off an incomplete record at its end; returns the
+     *  offset in file each record was written at */
+    static long[] appendAll(File file, List<GameRecord> records)
+            throws IOException {
+        File key = file.getAbsoluteFile();
+        Long written = WRITTEN_LENGTHS.remove(key);
+        if (file.length() > 0
+                && (written == null || written != file.length())) {
+            long complete = completeLength(file);
+            if (complete < file.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(complete);
+                }
+            }
+        }
+        boolean isNew = !file.exists() || file.length() == 0;
+        long start = isNew ? 0 : file.length();
+        long[] offsets = new long[records.size()];
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            if (isNew) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            for (int i = 0; i < offsets.length; i += 1) {
+                offsets[i] = start + out.size();
+                records.get(i).write(out);
+            }
+        }
+        WRITTEN_LENGTHS.put(key, file.length());
+        return offsets;
+    }
+
+    /** returns the length of the header and complete records at the
+     *  start of file, following the record lengths without reading the
+     *  records, or 0 if even the header is incomplete */
+    static long completeLength(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if (length < HEADER_BYTES) {
+                return 0;
+            }
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                throw new IOException("not a game record file: " + file);
+            }
+            long end = HEADER_BYTES;
+            while (end + 4 <= length) {
+                raf.seek(end);
+                int recordLength = raf.readInt();
+                if (recordLength < 0 || recordLength > MAX_RECORD_BYTES
+                        || end + 4 + recordLength > length) {
+                    break;
+                }
+                end += 4 + recordLength;
+            }
+            return end;
+        }
+    }
+
+    /** length of each file as appendAll last left it, so that only files
+     *  changed since, as after a crash, are scanned for a torn end */
+    private static final Map<File, Long> WRITTEN_LENGTHS =
+            new ConcurrentHashMap<>();
+
+    private final ArrayList<Integer> _actions;
+    private final ArrayList<float[]> _policies;
+    private float _result;
+}
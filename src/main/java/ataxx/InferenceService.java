@@ -0,0 +1,221 @@
+package ataxx;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Collects evaluation requests from any number of concurrent searches
+ *  and runs them through the network in batches on one dispatcher
+ *  thread. A batch is sent once it reaches maxBatchSize requests or
+ *  its first request has waited maxWaitMicros. */
+final class InferenceService implements Evaluator, AutoCloseable {
+
+    static final int MAX_BATCH_SIZE = 64;
+    static final long MAX_WAIT_MICROS = 500;
+
+    InferenceService(Game game, Evaluator network) {
+        this(game, network, MAX_BATCH_SIZE, MAX_WAIT_MICROS);
+    }
+
+    InferenceService(Game game, Evaluator network,
+                     int maxBatchSize, long maxWaitMicros) {
+        _network = network;
+        _actionSize = game.actionSize();
+        _maxBatchSize = maxBatchSize;
+        _maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        _queue = new LinkedBlockingQueue<>();
+        _closeLock = new Object();
+        _batch = new Request[maxBatchSize];
+        _boards = new Board[maxBatchSize];
+        _logPolicies = new float[maxBatchSize * _actionSize];
+        _values = new float[maxBatchSize];
+        _dispatcher = new Thread(this::dispatch, "inference-service");
+        _dispatcher.setDaemon(true);
+        _dispatcher.start();
+    }
+
+    /** queues canonical for evaluation; the returned future completes
+     *  once its log policy is in logPolicies at index * actionSize and
+     *  its value in values at index */
+    CompletableFuture<Void> submit(Board canonical, float[] logPolicies,
+                                   float[] values, int index) {
+        Request request = new Request(canonical.copy(), logPolicies,
+                values, index);
+        synchronized (_closeLock) {
+            if (_closed) {
+                request.future.completeExceptionally(
+                        new CancellationException());
+            } else {
+                _queue.add(request);
+            }
+        }
+        return request.future;
+    }
+
+    @Override
+    public void evaluate(Board[] boards, int n,
+                         float[] logPolicies, float[] values) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[n];
+        for (int i = 0; i < n; i += 1) {
+            futures[i] = submit(boards[i], logPolicies, values, i);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+    @Override
+    public long version() {
+        return _network.version();
+    }
+
+    /** returns number of batches run and their mean size */
+    String report() {
+        float meanSize = _numBatches == 0
+                ? 0 : (float) _numRequests / _numBatches;
+        return String.format("batches: %d, mean batch size: %.1f",
+                _numBatches, meanSize);
+    }
+
+    /** stops the dispatcher and cancels every request it did not run;
+     *  requests submitted from now on are cancelled at once */
+    @Override
+    public void close() {
+        synchronized (_closeLock) {
+            _closed = true;
+        }
+        _dispatcher.interrupt();
+        try {
+            _dispatcher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        cancelQueued();
+    }
+
+    /** cancels every queued request */
+    private void cancelQueued() {
+        for (Request request = _queue.poll(); request != null;
+             request = _queue.poll()) {
+            request.future.completeExceptionally(new CancellationException());
+        }
+    }
+
+    /** runs batches until closed; should it die of anything else, it
+     *  closes the service so no request is left waiting on it */
+    private void dispatch() {
+        try {
+            runBatches();
+        } finally {
+            synchronized (_closeLock) {
+                _closed = true;
+            }
+            for (int i = 0; i < _maxBatchSize; i += 1) {
+                if (_batch[i] != null) {
+                    _batch[i].future.completeExceptionally(
+                            new CancellationException());
+                    _batch[i] = null;
+                }
+            }
+            cancelQueued();
+        }
+    }
+
+    private void runBatches() {
+        while (!_closed) {
+            int n;
+            try {
+                n = gather();
+            } catch (InterruptedException ex) {
+                break;
+            }
+            for (int i = 0; i < n; i += 1) {
+                _boards[i] = _batch[i].board;
+            }
+            Metrics.InferenceBatchEvent event =
+                    new Metrics.InferenceBatchEvent();
+            event.begin();
+            long start = System.nanoTime();
+            try {
+                _network.evaluate(_boards, n, _logPolicies, _values);
+            } catch (Throwable ex) {
+                for (int i = 0; i < n; i += 1) {
+                    _batch[i].future.completeExceptionally(ex);
+                    _batch[i] = null;
+                    _boards[i] = null;
+                }
+                continue;
+            }
+            Metrics.BATCH_MICROS.record((System.nanoTime() - start) / 1000);
+            Metrics.BATCH_SIZE.record(n);
+            event.batchSize = n;
+            event.commit();
+            for (int i = 0; i < n; i += 1) {
+                Request request = _batch[i];
+                System.arraycopy(_logPolicies, i * _actionSize,
+                        request.logPolicies, request.index * _actionSize,
+                        _actionSize);
+                request.values[request.index] = _values[i];
+                request.future.complete(null);
+                _batch[i] = null;
+                _boards[i] = null;
+            }
+            _numBatches += 1;
+            _numRequests += n;
+        }
+    }
+
+    /** blocks for the next request, then collects more until the batch
+     *  is full or the first one has waited too long */
+    private int gather() throws InterruptedException {
+        _batch[0] = _queue.take();
+        long deadline = System.nanoTime() + _maxWaitNanos;
+        int n = 1;
+        while (n < _maxBatchSize) {
+            Request request;
+            try {
+                request = _queue.poll(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (request == null) {
+                break;
+            }
+            _batch[n] = request;
+            n += 1;
+        }
+        return n;
+    }
+
+    private static class Request {
+
+        Request(Board board, float[] logPolicies, float[] values, int index) {
+            this.board = board;
+            this.logPolicies = logPolicies;
+            this.values = values;
+            this.index = index;
+            this.future = new CompletableFuture<>();
+        }
+
+        final Board board;
+        final float[] logPolicies, values;
+        final int index;
+        final CompletableFuture<Void> future;
+    }
+
+    private final Evaluator _network;
+    private final int _actionSize, _maxBatchSize;
+    private final long _maxWaitNanos;
+    private final BlockingQueue<Request> _queue;
+    private final Request[] _batch;
+    private final Board[] _boards;
+    private final float[] _logPolicies, _values;
+    private final Thread _dispatcher;
+    /** held while checking _closed and queueing, so that nothing is
+     *  queued once close has started draining */
+    private final Object _closeLock;
+    private volatile boolean _closed;
+    private volatile long _numBatches, _numRequests;
+}
@@ -1,46 +1,78 @@
 package ataxx;
 
-import ai.djl.ndarray.NDArray;
-import ai.djl.ndarray.NDList;
-
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MCTS {
 
     static final int CPUCT = 1;
     static final int NUM_ITER = 25;
+    static final long MAX_TREE_BYTES = 64L << 20;
+    static final int VIRTUAL_LOSS = 1;
+    /** give positions EndgameSolver can settle their exact value, so
+     *  that they are treated like finished games */
+    static final boolean SOLVE_ENDGAMES = true;
 
-    MCTS(Game game, NeuralNet nnet) {
-        _game = game;
-        _nnet = nnet;
-        _stateValues = new HashMap<>();
-        _stateNumVisits = new HashMap<>();
-        _statePolicies = new HashMap<>();
-        _stateLegalActions = new HashMap<>();
-        _edgeNumVisits = new HashMap<>();
-        _edgeQValues = new HashMap<>();
+    MCTS(Game game, Evaluator evaluator) {
+        this(game, evaluator, Main.RAND);
+    }
+
+    /** breaks ties between best moves with random */
+    MCTS(Game game, Evaluator evaluator, Random random) {
+        this(game, evaluator, 1, 1, MAX_TREE_BYTES, random);
     }
 
-    NDArray policy(NDArray canonical, float temperature) {
-        for (int i = 0; i < NUM_ITER; i += 1) {
-            search(canonical);
+    MCTS(Game game, Evaluator evaluator, int batchSize, int numThreads) {
+        this(game, evaluator, batchSize, numThreads, MAX_TREE_BYTES,
+                Main.RAND);
+    }
+
+    /** searches with numThreads workers sharing one tree of at most
+     *  maxTreeBytes, each descending up to batchSize paths per call to
+     *  evaluator; all but the first run on threads kept until close */
+    MCTS(Game game, Evaluator evaluator, int batchSize, int numThreads,
+         long maxTreeBytes, Random random) {
+        _game = game;
+        _evaluator = evaluator;
+        _random = random;
+        _nodes = new NodePool(maxTreeBytes);
+        _workers = new Worker[numThreads];
+        for (int t = 0; t < numThreads; t += 1) {
+            _workers[t] = new Worker(batchSize);
         }
-        String state = _game.repr(canonical);
-        float[] actionWeights = new float[_game.actionSize()];
-        for (int a = 0; a < actionWeights.length; a += 1) {
-            String edge = state + a;
-            if (_edgeNumVisits.containsKey(edge)) {
-                actionWeights[a] = _edgeNumVisits.get(edge);
-            }
+        if (numThreads > 1) {
+            _pool = Executors.newFixedThreadPool(numThreads - 1, runnable -> {
+                Thread thread = new Thread(runnable, "mcts");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
+        _simsLeft = new AtomicInteger();
+    }
+
+    float[] policy(Board canonical, float temperature) {
+        return policy(canonical, temperature, NUM_ITER);
+    }
+
+    /** returns visit counts after numSims simulations from canonical,
+     *  raised to 1 / temperature and normalized, or all on the most
+     *  visited action, ties broken at random, at temperature 0 */
+    float[] policy(Board canonical, float temperature, int numSims) {
+        simulate(canonical, numSims);
+        float[] actionWeights = visits(canonical);
         float[] policy = new float[actionWeights.length];
         if (temperature == 0) {
             ArrayList<Integer> bestActions = maxIndices(actionWeights);
             int bestAction = bestActions.get(
-                    Main.RAND.nextInt(bestActions.size()));
+                    _random.nextInt(bestActions.size()));
             policy[bestAction] = 1;
-            return canonical.getManager().create(policy);
+            return policy;
         }
         float weightTotal = 0;
         for (int a = 0; a < actionWeights.length; a += 1) {
@@ -50,15 +82,219 @@ public class MCTS {
         for (int a = 0; a < policy.length; a += 1) {
             policy[a] = actionWeights[a] / weightTotal;
         }
-        return canonical.getManager().create(policy);
+        return policy;
+    }
+
+    /** returns the visit count of each action at canonical, or 1 for
+     *  every legal action if it has not been searched */
+    float[] visits(Board canonical) {
+        float[] actionWeights = new float[_game.actionSize()];
+        int root = _nodes.find(canonical.hash());
+        if (root >= 0 && _nodes.isExpanded(root)) {
+            int first = _nodes.firstEdge(root);
+            for (int e = first; e < first + _nodes.numEdges(root); e += 1) {
+                actionWeights[_nodes.action(e)] = _nodes.edgeVisits(e);
+            }
+        } else {
+            int[] actions = new int[_game.actionSize()];
+            int numLegal = _game.legalActions(canonical, 1, actions);
+            for (int i = 0; i < numLegal; i += 1) {
+                actionWeights[actions[i]] = 1;
+            }
+        }
+        return actionWeights;
+    }
+
+    /** writes the most visited line of play from canonical into
+     *  actions, up to its length, and returns the number written */
+    int principalVariation(Board canonical, int[] actions) {
+        Board board = canonical.copy();
+        int n = 0;
+        for (int node = _nodes.find(board.hash());
+             node >= 0 && _nodes.isExpanded(node) && n < actions.length;
+             node = _nodes.find(board.hash())) {
+            int edge = mostVisited(node);
+            if (_nodes.edgeVisits(edge) == 0) {
+                break;
+            }
+            actions[n] = _nodes.action(edge);
+            n += 1;
+            _game.next(board, 1, actions[n - 1]);
+            _game.canonical(board, -1);
+        }
+        return n;
+    }
+
+    /** returns the mean value of the most visited action at canonical
+     *  for the player to move, or 0 if it has not been searched */
+    float value(Board canonical) {
+        int root = _nodes.find(canonical.hash());
+        if (root < 0 || !_nodes.isExpanded(root)) {
+            return 0;
+        }
+        int edge = mostVisited(root);
+        int n = _nodes.edgeVisits(edge);
+        return n == 0 ? 0 : _nodes.edgeValueSum(edge) / n;
+    }
+
+    /** returns the mean value of every simulation through canonical
+     *  for the player to move, or 0 if it has not been searched */
+    float meanValue(Board canonical) {
+        int root = _nodes.find(canonical.hash());
+        if (root < 0 || !_nodes.isExpanded(root)) {
+            return 0;
+        }
+        int first = _nodes.firstEdge(root), visits = 0;
+        float valueSum = 0;
+        for (int e = first; e < first + _nodes.numEdges(root); e += 1) {
+            visits += _nodes.edgeVisits(e);
+            valueSum += _nodes.edgeValueSum(e);
+        }
+        return visits == 0 ? 0 : valueSum / visits;
+    }
+
+    /** runs numSims simulations from canonical, spread over all workers,
+     *  or fewer if the deadline passes or stop is called first, and
+     *  returns the number run */
+    int simulate(Board canonical, int numSims) {
+        Metrics.SearchEvent event = new Metrics.SearchEvent();
+        event.begin();
+        _nodes.sweep(canonical.hash());
+        float rootValue = _game.value(canonical, 1);
+        _root = _nodes.add(canonical.hash(), rootValue);
+        if (_root >= 0) {
+            // a root solved while it was a leaf still needs its moves
+            _nodes.setValue(_root, rootValue);
+        }
+        _searchSims = numSims;
+        _searchStart = System.nanoTime();
+        _simsLeft.set(numSims);
+        if (_workers.length == 1) {
+            _workers[0].run(canonical);
+        } else {
+            runWorkers(canonical);
+        }
+        int done = numSims - Math.max(_simsLeft.get(), 0);
+        Metrics.SIMULATIONS.add(done);
+        event.simulations = done;
+        event.commit();
+        return done;
+    }
+
+    /** makes searches end at the System.nanoTime value deadline, or
+     *  never with Long.MAX_VALUE; may be moved during a search */
+    void deadline(long deadline) {
+        _deadline = deadline;
+    }
+
+    /** ends the current search, from any thread, once each worker has
+     *  finished the simulations it has under way */
+    void stop() {
+        _deadline = Long.MIN_VALUE;
+    }
+
+    /** makes searches end as soon as no action can overtake the most
+     *  visited one with the simulations left, which leaves the most
+     *  visited action as it would have been but not the other counts;
+     *  under a deadline the simulations left are estimated from the
+     *  rate so far */
+    void earlyStop(boolean earlyStop) {
+        _earlyStop = earlyStop;
+    }
+
+    /** forgets every searched position */
+    void clear() {
+        _nodes.clear();
+    }
+
+    /** ends the worker threads; the search may not be used after */
+    void close() {
+        if (_pool != null) {
+            _pool.shutdown();
+        }
+    }
+
+    /** true while the search should go on with simsLeft of its
+     *  simulations left */
+    private boolean running(int simsLeft) {
+        long deadline = _deadline;
+        if (deadline == Long.MAX_VALUE) {
+            return !_earlyStop || !decided(simsLeft);
+        }
+        long now = System.nanoTime();
+        if (now >= deadline) {
+            return false;
+        }
+        if (!_earlyStop) {
+            return true;
+        }
+        double rate = (double) (_searchSims - simsLeft)
+                / Math.max(now - _searchStart, 1);
+        return !decided((long) Math.min(simsLeft, rate * (deadline - now)));
+    }
+
+    /** true if simsLeft more visits to the root cannot change which of
+     *  its actions is visited most */
+    private boolean decided(long simsLeft) {
+        int root = _root;
+        if (root < 0 || !_nodes.isExpanded(root)) {
+            return false;
+        }
+        int first = _nodes.firstEdge(root), most = 0, second = 0;
+        for (int e = first; e < first + _nodes.numEdges(root); e += 1) {
+            int visits = _nodes.edgeVisits(e);
+            if (visits > most) {
+                second = most;
+                most = visits;
+            } else if (visits > second) {
+                second = visits;
+            }
+        }
+        return most - second > simsLeft;
+    }
+
+    /** returns the edge of expanded node with the most visits */
+    private int mostVisited(int node) {
+        int first = _nodes.firstEdge(node), best = first;
+        for (int e = first + 1; e < first + _nodes.numEdges(node); e += 1) {
+            if (_nodes.edgeVisits(e) > _nodes.edgeVisits(best)) {
+                best = e;
+            }
+        }
+        return best;
+    }
+
+    /** runs the first worker on this thread and the rest on the pool
+     *  until the budget is spent */
+    private void runWorkers(Board canonical) {
+        Future<?>[] results = new Future<?>[_workers.length - 1];
+        for (int t = 1; t < _workers.length; t += 1) {
+            Worker worker = _workers[t];
+            results[t - 1] = _pool.submit(() -> worker.run(canonical));
+        }
+        _workers[0].run(canonical);
+        try {
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /** returns search tree occupancy and hit statistics */
+    String report() {
+        return _nodes.report();
     }
 
     ArrayList<Integer> maxIndices(float[] ar) {
         ArrayList<Integer> maxes = new ArrayList<>();
         maxes.add(0);
-        for (int i = 0; i < ar.length; i += 1) {
+        for (int i = 1; i < ar.length; i += 1) {
             float max = ar[maxes.get(0)], cur = ar[i];
-            if (max > cur) {
+            if (cur > max) {
                 maxes = new ArrayList<>();
                 maxes.add(i);
             } else if (max == cur) {
@@ -68,91 +304,253 @@ public class MCTS {
         return maxes;
     }
 
-    float search(NDArray canonical) {
-        String state = _game.repr(canonical);
-        if (!_stateValues.containsKey(state)) {
-            _stateValues.put(state, _game.value(canonical, 1));
+    float pow(float a, float b) {
+        return (float) Math.pow(a, b);
+    }
+
+    /** scratch state of one search thread */
+    class Worker {
+
+        Worker(int batchSize) {
+            _batchSize = batchSize;
+            _actions = new int[_game.actionSize()];
+            _priors = new float[_game.actionSize()];
+            _board = _game.initial();
+            _leafBoards = new Board[batchSize];
+            for (int k = 0; k < batchSize; k += 1) {
+                _leafBoards[k] = _game.initial();
+            }
+            _leafNodes = new int[batchSize];
+            _leafStarts = new int[batchSize];
+            _leafEnds = new int[batchSize];
+            _logPolicies = new float[batchSize * _game.actionSize()];
+            _values = new float[batchSize];
+            _pathNodes = new int[batchSize * 64];
+            _pathEdges = new int[batchSize * 64];
         }
-        if (_stateValues.get(state) != 0) {
-            return -_stateValues.get(state);
+
+        /** searches from canonical until the shared budget runs out, the
+         *  deadline passes or the search is decided early */
+        void run(Board canonical) {
+            if (_batchSize == 1 && _workers.length == 1) {
+                int i = _simsLeft.get();
+                for (; i > 0 && running(i); i -= 1) {
+                    _board.copyFrom(canonical);
+                    search(_board);
+                }
+                _simsLeft.set(i);
+                return;
+            }
+            for (int left = _simsLeft.get(); left > 0 && running(left);
+                 left = _simsLeft.get()) {
+                int numSims = searchBatch(canonical);
+                if (numSims == 0) {
+                    Thread.onSpinWait();
+                }
+                _simsLeft.addAndGet(-numSims);
+            }
         }
-        if (!_statePolicies.containsKey(state)) {
-            return -evaluateLeaf(canonical, state);
+
+        /** searches from canonical, modifying canonical in place */
+        float search(Board canonical) {
+            int node = _nodes.find(canonical.hash());
+            if (node < 0) {
+                float value = leafValue(canonical);
+                node = _nodes.add(canonical.hash(), value);
+                if (node < 0) {
+                    return value != 0 ? -value : -evaluateLeaf(canonical, -1);
+                }
+            }
+            if (_nodes.value(node) != 0) {
+                return -_nodes.value(node);
+            }
+            if (!_nodes.isExpanded(node)) {
+                return -evaluateLeaf(canonical, node);
+            }
+            int edge = _nodes.select(node, CPUCT);
+            _game.next(canonical, 1, _nodes.action(edge));
+            _game.canonical(canonical, -1);
+            float value = search(canonical);
+            _nodes.update(node, edge, value);
+            return -value;
         }
-        NDArray legal = _stateLegalActions.get(state);
-        float bestUCB = -Float.MAX_VALUE;
-        int bestAction = -1;
-        for (int a = 0; a < _game.actionSize(); a += 1) {
-            if (legal.get(a).getInt() != 0) {
-                float ucb = ucb(state, a);
-                if (ucb > bestUCB) {
-                    bestUCB = ucb;
-                    bestAction = a;
+
+        /** runs up to _batchSize simulations from canonical, applying
+         *  virtual loss along each path and evaluating all new leaves in
+         *  one network call; returns the number of simulations backed up.
+         *  If the call throws, the leaves not yet backed up are released
+         *  and their virtual loss removed, leaving the tree reusable */
+        int searchBatch(Board canonical) {
+            int numLeaves = 0, numPath = 0, numSims = 0;
+            for (int k = 0; k < _batchSize; k += 1) {
+                Board board = _leafBoards[numLeaves];
+                board.copyFrom(canonical);
+                int start = numPath, node;
+                float value;
+                while (true) {
+                    node = _nodes.find(board.hash());
+                    if (node < 0) {
+                        value = leafValue(board);
+                        node = _nodes.add(board.hash(), value);
+                        if (node < 0) {
+                            break;
+                        }
+                    }
+                    value = _nodes.value(node);
+                    if (value != 0 || !_nodes.isExpanded(node)) {
+                        break;
+                    }
+                    int edge = _nodes.select(node, CPUCT);
+                    _nodes.addVirtualLoss(node, edge, VIRTUAL_LOSS);
+                    numPath = push(numPath, node, edge);
+                    _game.next(board, 1, _nodes.action(edge));
+                    _game.canonical(board, -1);
+                }
+                if (value != 0) {
+                    backup(start, numPath, value);
+                    numSims += 1;
+                    numPath = start;
+                } else if (node >= 0 && !_nodes.claim(node)) {
+                    revert(start, numPath);
+                    numPath = start;
+                } else {
+                    _leafNodes[numLeaves] = node;
+                    _leafStarts[numLeaves] = start;
+                    _leafEnds[numLeaves] = numPath;
+                    numLeaves += 1;
+                }
+            }
+            if (numLeaves == 0) {
+                return numSims;
+            }
+            int done = 0;
+            try {
+                _evaluator.evaluate(_leafBoards, numLeaves,
+                        _logPolicies, _values);
+                Metrics.LEAF_EVALUATIONS.add(numLeaves);
+                for (; done < numLeaves; done += 1) {
+                    if (_leafNodes[done] >= 0) {
+                        expand(_leafBoards[done], _leafNodes[done],
+                                _logPolicies, done * _game.actionSize());
+                    }
+                    backup(_leafStarts[done], _leafEnds[done],
+                            _values[done]);
+                }
+            } finally {
+                for (int k = done; k < numLeaves; k += 1) {
+                    if (_leafNodes[k] >= 0) {
+                        _nodes.unclaim(_leafNodes[k]);
+                    }
+                    revert(_leafStarts[k], _leafEnds[k]);
                 }
             }
+            return numSims + numLeaves;
         }
-        NDArray next = _game.next(canonical, 1, bestAction);
-        next = _game.canonical(next, -1);
-        float value = search(next);
-        String edge = state + bestAction;
-        if (_edgeQValues.containsKey(edge)) {
-            int Nsa = _edgeNumVisits.get(edge);
-            float Qsa = _edgeQValues.get(edge);
-            _edgeQValues.put(edge, (Nsa * Qsa + value) / (Nsa + 1));
-            _edgeNumVisits.put(edge, Nsa + 1);
-        } else {
-            _edgeQValues.put(edge, value);
-            _edgeNumVisits.put(edge, 1);
-        }
-        _stateNumVisits.put(state, _stateNumVisits.get(state) + 1);
-        return -value;
-    }
-
-    float evaluateLeaf(NDArray canonical, String state) {
-        NDList prediction = _nnet.predict(canonical);
-        NDArray policy = prediction.get(0);
-        float value = prediction.get(1).getFloat();
-        NDArray legal = _game.legalActions(canonical, 1);
-        policy = policy.mul(legal);
-        NDArray policyTotal = policy.sum();
-        if (policyTotal.getFloat() > 0) {
-            policy = policy.div(policyTotal);
-        } else {
-            policy = policy.add(legal);
-            policy = policy.div(policy.sum());
-        }
-        _stateNumVisits.put(state, 0);
-        _statePolicies.put(state, policy);
-        _stateLegalActions.put(state, legal);
-        return value;
-    }
-
-    float ucb(String state, int action) {
-        String edge = state + action;
-        float Ns = _stateNumVisits.get(state);
-        float prob = _statePolicies.get(state)
-                .get(action).getFloat();
-        if (_edgeQValues.containsKey(edge)) {
-            float Qsa = _edgeQValues.get(edge);
-            float Nsa = _edgeNumVisits.get(edge);
-            return Qsa + CPUCT * prob * sqrt(Ns) / (1 + Nsa);
-        } else {
-            return CPUCT * prob * sqrt(Ns + Main.EPS);
 
+        /** removes virtual loss along the path between start and end and
+         *  records leafValue, seen from the player to move at the leaf */
+        void backup(int start, int end, float leafValue) {
+            float value = -leafValue;
+            for (int d = end - 1; d >= start; d -= 1) {
+                _nodes.backup(_pathNodes[d], _pathEdges[d], value,
+                        VIRTUAL_LOSS);
+                value = -value;
+            }
         }
-    }
 
-    float sqrt(float x) {
-        return (float) Math.sqrt(x);
-    }
+        /** removes virtual loss along the path between start and end */
+        void revert(int start, int end) {
+            for (int d = end - 1; d >= start; d -= 1) {
+                _nodes.addVirtualLoss(_pathNodes[d], _pathEdges[d],
+                        -VIRTUAL_LOSS);
+            }
+        }
 
-    float pow(float a, float b) {
-        return (float) Math.pow(a, b);
+        int push(int numPath, int node, int edge) {
+            if (numPath == _pathNodes.length) {
+                _pathNodes = Arrays.copyOf(_pathNodes, numPath * 2);
+                _pathEdges = Arrays.copyOf(_pathEdges, numPath * 2);
+            }
+            _pathNodes[numPath] = node;
+            _pathEdges[numPath] = edge;
+            return numPath + 1;
+        }
+
+        /** returns the value of canonical if the game is over there or
+         *  the solver proves it, as Game.value would give it, else 0 */
+        float leafValue(Board canonical) {
+            float value = _game.value(canonical, 1);
+            if (value != 0 || !SOLVE_ENDGAMES || Long.bitCount(
+                    canonical.empty()) > EndgameSolver.MAX_EMPTY) {
+                return value;
+            }
+            if (_solver == null) {
+                _solver = new EndgameSolver(_game);
+            }
+            int result = _solver.solve(canonical);
+            if (result == EndgameSolver.UNSOLVED) {
+                return 0;
+            }
+            return result == 0 ? Main.EPS : result;
+        }
+
+        /** returns the network value of canonical, expanding node with
+         *  its policy unless node is -1 */
+        float evaluateLeaf(Board canonical, int node) {
+            _leafBoards[0].copyFrom(canonical);
+            _evaluator.evaluate(_leafBoards, 1, _logPolicies, _values);
+            Metrics.LEAF_EVALUATIONS.add(1);
+            if (node >= 0) {
+                expand(canonical, node, _logPolicies, 0);
+            }
+            return _values[0];
+        }
+
+        /** expands node with the legal part of the network log policy
+         *  stored in logPolicies from offset */
+        void expand(Board canonical, int node,
+                    float[] logPolicies, int offset) {
+            int numLegal = _game.legalActions(canonical, 1, _actions);
+            float policyTotal = 0;
+            for (int i = 0; i < numLegal; i += 1) {
+                _priors[i] = (float) Math.exp(
+                        logPolicies[offset + _actions[i]]);
+                policyTotal += _priors[i];
+            }
+            for (int i = 0; i < numLegal; i += 1) {
+                if (policyTotal > 0) {
+                    _priors[i] /= policyTotal;
+                } else {
+                    _priors[i] = 1f / numLegal;
+                }
+            }
+            _nodes.expand(node, _actions, _priors, numLegal);
+        }
+
+        private int _batchSize;
+        private int[] _actions;
+        private float[] _priors;
+        private Board _board;
+        private Board[] _leafBoards;
+        private int[] _leafNodes, _leafStarts, _leafEnds;
+        private int[] _pathNodes, _pathEdges;
+        private float[] _logPolicies, _values;
+        /** created on the first position near enough the end */
+        private EndgameSolver _solver;
     }
 
     private Game _game;
-    private NeuralNet _nnet;
-    private HashMap<String, Integer> _edgeNumVisits, _stateNumVisits;
-    private HashMap<String, Float> _stateValues, _edgeQValues;
-    private HashMap<String, NDArray> _statePolicies, _stateLegalActions;
+    private Evaluator _evaluator;
+    private Random _random;
+    private NodePool _nodes;
+    private Worker[] _workers;
+    /** threads of every worker but the first, if there are others */
+    private ExecutorService _pool;
+    private AtomicInteger _simsLeft;
+    private volatile long _deadline = Long.MAX_VALUE;
+    private boolean _earlyStop;
+    /** root node, budget and System.nanoTime start of the search */
+    private int _root;
+    private int _searchSims;
+    private long _searchStart;
 }
@@ -1,5 +1,10 @@
 package ataxx;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Random;
 
 public class Main {
@@ -9,8 +14,70 @@ public class Main {
 
     public static void main(String[] args) {
         AtaxxGame game = new AtaxxGame();
-        NeuralNet nnet = new NeuralNet(game);
+        NetProfile profile = NeuralNet.PROFILE;
+        if (args.length >= 2 && args[0].equals("--profile")) {
+            profile = NetProfile.named(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        boolean cpuInference = false, cpuInt8 = false;
+        if (args.length >= 1 && (args[0].equals("--cpu-inference")
+                || args[0].equals("--cpu-int8"))) {
+            cpuInference = true;
+            cpuInt8 = args[0].equals("--cpu-int8");
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        File checkpoint = null;
+        if (args.length >= 1 && args[0].equals("--resume")) {
+            checkpoint = args.length == 2
+                    ? new File(args[1]) : SelfPlay.CHECKPOINT;
+            try {
+                profile = Checkpoint.profile(checkpoint);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return;
+            }
+        }
+        if (cpuInference && profile.residual()) {
+            System.err.println("CPU inference needs the classic profile, "
+                    + "not " + profile);
+            return;
+        }
+        NeuralNet nnet = new NeuralNet(game, profile);
+        if (cpuInference) {
+            nnet.cpuInference(cpuInt8);
+        }
+        if (args.length >= 1 && args[0].equals("--engine")) {
+            nnet.load(args.length == 2
+                    ? new File(args[1]) : SelfPlay.BEST_SAVE);
+            try {
+                new Engine(game, nnet).run(new BufferedReader(
+                        new InputStreamReader(System.in)), System.out);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+        System.out.println("network: " + profile);
+        if (args.length >= 1 && args[0].equals("--bench-cpu")) {
+            if (args.length == 2) {
+                nnet.load(new File(args[1]));
+            }
+            CpuNet.benchmark(game, nnet, 1000, RAND);
+            return;
+        }
         SelfPlay selfPlay = new SelfPlay(game, nnet);
-        selfPlay.learn();
+        if (args.length == 2 && args[0].equals("--offline")) {
+            selfPlay.trainOffline(new File(args[1]));
+        } else if (checkpoint != null) {
+            try {
+                selfPlay.resume(checkpoint);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return;
+            }
+            selfPlay.learn();
+        } else {
+            selfPlay.learn();
+        }
     }
 }
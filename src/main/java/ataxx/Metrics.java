@@ -0,0 +1,305 @@
+package ataxx;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Process-wide counters and histograms of where learning spends its
+ *  time. Every record lands in them cheaply from any thread; report
+ *  appends one JSON line per call with totals, rates and distributions
+ *  since the previous line. The same activity is also emitted as JFR
+ *  events in the Ataxx category, so a recording started with
+ *  -XX:StartFlightRecording shows it next to the JVM's own events. */
+final class Metrics {
+
+    /** every counter and histogram, in report order; filled by the
+     *  initializers below, so declared first */
+    private static final List<Counter> COUNTERS = new ArrayList<>();
+    private static final List<Histogram> HISTOGRAMS = new ArrayList<>();
+
+    static final Counter SIMULATIONS = counter("mcts.simulations");
+    static final Counter LEAF_EVALUATIONS = counter("mcts.leaf_evaluations");
+    static final Counter CACHE_HITS = counter("nn.cache_hits");
+    static final Counter CACHE_LOOKUPS = counter("nn.cache_lookups");
+    static final Histogram BATCH_SIZE = histogram("nn.batch_size");
+    static final Histogram BATCH_MICROS = histogram("nn.batch_micros");
+    static final Counter GAMES = counter("selfplay.games");
+    static final Histogram GAME_MOVES = histogram("selfplay.game_moves");
+    static final Counter RESIGNATIONS = counter("games.resignations");
+    static final Counter SOLVED = counter("solver.solved");
+    static final Counter UNSOLVED = counter("solver.unsolved");
+    static final Histogram SOLVER_NODES = histogram("solver.nodes");
+    static final Histogram TRAIN_STEP_MICROS =
+            histogram("train.step_micros");
+    static final Histogram GATING_MILLIS = histogram("gating.millis");
+
+    private Metrics() {
+    }
+
+    /** names the current stage of learning in reports and events */
+    static void phase(int session, String phase) {
+        _session = session;
+        _phase = phase;
+    }
+
+    /** appends a report to file every periodSeconds until exit */
+    static synchronized void startReporting(File file, long periodSeconds) {
+        if (_reporter != null) {
+            return;
+        }
+        _reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _reporter.scheduleAtFixedRate(() -> report(file), periodSeconds,
+                periodSeconds, TimeUnit.SECONDS);
+        FlightRecorder.addPeriodicEvent(CountersEvent.class, () -> {
+            CountersEvent event = new CountersEvent();
+            event.session = _session;
+            event.phase = _phase;
+            event.simulations = SIMULATIONS.total();
+            event.leafEvaluations = LEAF_EVALUATIONS.total();
+            event.cacheHits = CACHE_HITS.total();
+            event.cacheLookups = CACHE_LOOKUPS.total();
+            event.games = GAMES.total();
+            event.commit();
+        });
+    }
+
+    /** appends one JSON line to file covering the time since the last
+     *  report */
+    static synchronized void report(File file) {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - _lastReport) / 1e9);
+        _lastReport = now;
+        StringBuilder line = new StringBuilder();
+        line.append(String.format(Locale.ROOT,
+                "{\"time\":\"%s\",\"seconds\":%.3f,\"session\":%d,"
+                        + "\"phase\":\"%s\"", Instant.now(), seconds,
+                _session, _phase));
+        long hits = 0, lookups = 0, games = 0;
+        for (Counter counter : COUNTERS) {
+            long delta = counter.delta();
+            hits = counter == CACHE_HITS ? delta : hits;
+            lookups = counter == CACHE_LOOKUPS ? delta : lookups;
+            games = counter == GAMES ? delta : games;
+            line.append(String.format(Locale.ROOT,
+                    ",\"%s\":{\"total\":%d,\"per_s\":%.1f}",
+                    counter.name, counter.total(), delta / seconds));
+        }
+        line.append(String.format(Locale.ROOT,
+                ",\"nn.cache_hit_rate\":%.4f,\"selfplay.games_per_hour\":%.1f",
+                lookups == 0 ? 0 : (double) hits / lookups,
+                games * 3600 / seconds));
+        for (Histogram histogram : HISTOGRAMS) {
+            line.append(',').append(histogram.drain());
+        }
+        line.append("}\n");
+        try (Writer out = new FileWriter(file, true)) {
+            out.write(line.toString());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static Counter counter(String name) {
+        Counter counter = new Counter(name);
+        COUNTERS.add(counter);
+        return counter;
+    }
+
+    private static Histogram histogram(String name) {
+        Histogram histogram = new Histogram(name);
+        HISTOGRAMS.add(histogram);
+        return histogram;
+    }
+
+    /** a total that many threads add to */
+    static final class Counter {
+
+        Counter(String name) {
+            this.name = name;
+            _total = new LongAdder();
+        }
+
+        void add(long n) {
+            _total.add(n);
+        }
+
+        long total() {
+            return _total.sum();
+        }
+
+        /** returns the amount added since the last call */
+        private long delta() {
+            long total = total(), delta = total - _reported;
+            _reported = total;
+            return delta;
+        }
+
+        final String name;
+        private final LongAdder _total;
+        private long _reported;
+    }
+
+    /** distribution of non-negative values, in buckets SUB_BUCKETS to a
+     *  power of two so percentiles are within an eighth */
+    static final class Histogram {
+
+        static final int SUB_BUCKETS = 8;
+
+        Histogram(String name) {
+            this.name = name;
+            _buckets = new long[64 * SUB_BUCKETS];
+        }
+
+        synchronized void record(long value) {
+            value = Math.max(value, 0);
+            _buckets[bucket(value)] += 1;
+            _count += 1;
+            _sum += value;
+            _max = Math.max(_max, value);
+        }
+
+        /** returns a JSON field of the values recorded since the last
+         *  call and forgets them */
+        private synchronized String drain() {
+            String field = String.format(Locale.ROOT,
+                    "\"%s\":{\"count\":%d,\"mean\":%.1f,\"p50\":%d,"
+                            + "\"p90\":%d,\"p99\":%d,\"max\":%d}",
+                    name, _count, _count == 0 ? 0.0 : (double) _sum / _count,
+                    percentile(0.5), percentile(0.9), percentile(0.99), _max);
+            Arrays.fill(_buckets, 0);
+            _count = 0;
+            _sum = 0;
+            _max = 0;
+            return field;
+        }
+
+        /** returns the lower bound of the bucket holding quantile q */
+        private long percentile(double q) {
+            long rank = (long) Math.ceil(q * _count), seen = 0;
+            for (int b = 0; b < _buckets.length; b += 1) {
+                seen += _buckets[b];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(lowerBound(b), _max);
+                }
+            }
+            return 0;
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int octave = 63 - Long.numberOfLeadingZeros(value);
+            return (octave - 2) * SUB_BUCKETS
+                    + (int) ((value >>> (octave - 3)) & (SUB_BUCKETS - 1));
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int octave = bucket / SUB_BUCKETS + 2;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS)
+                    << (octave - 3);
+        }
+
+        final String name;
+        private final long[] _buckets;
+        private long _count, _sum, _max;
+    }
+
+    @Name("ataxx.Search")
+    @Label("Search")
+    @Category("Ataxx")
+    @Description("One MCTS search from a root position")
+    static class SearchEvent extends Event {
+        @Label("Simulations")
+        int simulations;
+    }
+
+    @Name("ataxx.InferenceBatch")
+    @Label("Inference Batch")
+    @Category("Ataxx")
+    @Description("One batch of positions through the network")
+    static class InferenceBatchEvent extends Event {
+        @Label("Batch Size")
+        int batchSize;
+    }
+
+    @Name("ataxx.SelfPlayGame")
+    @Label("Self-Play Game")
+    @Category("Ataxx")
+    static class SelfPlayGameEvent extends Event {
+        @Label("Moves")
+        int moves;
+        @Label("Result For Red")
+        float result;
+    }
+
+    @Name("ataxx.TrainStep")
+    @Label("Train Step")
+    @Category("Ataxx")
+    static class TrainStepEvent extends Event {
+        @Label("Batch Size")
+        int batchSize;
+    }
+
+    @Name("ataxx.Gating")
+    @Label("Gating")
+    @Category("Ataxx")
+    @Description("Arena match of a trained network against the last one")
+    static class GatingEvent extends Event {
+        @Label("Session")
+        int session;
+        @Label("Accepted")
+        boolean accepted;
+    }
+
+    @Name("ataxx.Counters")
+    @Label("Learning Counters")
+    @Category("Ataxx")
+    @Period("10 s")
+    static class CountersEvent extends Event {
+        @Label("Session")
+        int session;
+        @Label("Phase")
+        String phase;
+        @Label("Simulations")
+        long simulations;
+        @Label("Leaf Evaluations")
+        long leafEvaluations;
+        @Label("Cache Hits")
+        long cacheHits;
+        @Label("Cache Lookups")
+        long cacheLookups;
+        @Label("Games")
+        long games;
+    }
+
+    private static ScheduledExecutorService _reporter;
+    private static long _lastReport = System.nanoTime();
+    private static volatile int _session;
+    private static volatile String _phase = "";
+}
@@ -0,0 +1,153 @@
+package ataxx;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+
+/** Shape of the network CNN builds. The classic profile is the original
+ *  four convolutions followed by two dense layers. Residual profiles
+ *  are a 3x3 stem and a tower of residual blocks of the given depth and
+ *  width, each optionally ending in squeeze-excitation. Either head is
+ *  DENSE, a linear layer on the flattened trunk, or CONV, a 1x1
+ *  convolution before the dense layers, which needs a residual trunk. */
+final class NetProfile {
+
+    enum Head { DENSE, CONV }
+
+    static final NetProfile CLASSIC = new NetProfile("classic", false,
+            512, 4, 0, Head.DENSE, Head.DENSE, 0);
+    static final NetProfile SMALL = new NetProfile("small", true,
+            32, 4, 4, Head.CONV, Head.CONV, 32);
+    static final NetProfile MEDIUM = new NetProfile("medium", true,
+            64, 6, 4, Head.CONV, Head.CONV, 64);
+    static final NetProfile LARGE = new NetProfile("large", true,
+            128, 10, 4, Head.CONV, Head.CONV, 128);
+    static final NetProfile[] PROFILES = {CLASSIC, SMALL, MEDIUM, LARGE};
+
+    /** seRatio is the channel reduction inside squeeze-excitation, 0 for
+     *  none; valueHidden is the width of the CONV value head's hidden
+     *  layer */
+    NetProfile(String name, boolean residual, int channels, int blocks,
+               int seRatio, Head policyHead, Head valueHead,
+               int valueHidden) {
+        if (!residual && (policyHead == Head.CONV || valueHead == Head.CONV)) {
+            throw new IllegalArgumentException(
+                    "convolutional heads need a residual trunk");
+        }
+        if (seRatio < 0 || (seRatio > 0 && channels % seRatio != 0)) {
+            throw new IllegalArgumentException(
+                    "bad squeeze-excitation ratio " + seRatio);
+        }
+        _name = name;
+        _residual = residual;
+        _channels = channels;
+        _blocks = blocks;
+        _seRatio = seRatio;
+        _policyHead = policyHead;
+        _valueHead = valueHead;
+        _valueHidden = valueHidden;
+    }
+
+    /** returns the preset called name */
+    static NetProfile named(String name) {
+        for (NetProfile profile : PROFILES) {
+            if (profile._name.equals(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("unknown profile " + name);
+    }
+
+    String name() {
+        return _name;
+    }
+
+    boolean residual() {
+        return _residual;
+    }
+
+    int channels() {
+        return _channels;
+    }
+
+    /** residual blocks; the classic trunk always has four convolutions */
+    int blocks() {
+        return _blocks;
+    }
+
+    int seRatio() {
+        return _seRatio;
+    }
+
+    Head policyHead() {
+        return _policyHead;
+    }
+
+    Head valueHead() {
+        return _valueHead;
+    }
+
+    int valueHidden() {
+        return _valueHidden;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeUTF(_name);
+        out.writeBoolean(_residual);
+        out.writeInt(_channels);
+        out.writeInt(_blocks);
+        out.writeInt(_seRatio);
+        out.writeByte(_policyHead.ordinal());
+        out.writeByte(_valueHead.ordinal());
+        out.writeInt(_valueHidden);
+    }
+
+    static NetProfile read(DataInputStream in) throws IOException {
+        try {
+            return new NetProfile(in.readUTF(), in.readBoolean(),
+                    in.readInt(), in.readInt(), in.readInt(),
+                    Head.values()[in.readByte()],
+                    Head.values()[in.readByte()], in.readInt());
+        } catch (IllegalArgumentException
+                 | ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("bad network profile", ex);
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof NetProfile)) {
+            return false;
+        }
+        NetProfile that = (NetProfile) other;
+        return _name.equals(that._name) && _residual == that._residual
+                && _channels == that._channels && _blocks == that._blocks
+                && _seRatio == that._seRatio
+                && _policyHead == that._policyHead
+                && _valueHead == that._valueHead
+                && _valueHidden == that._valueHidden;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(_name, _residual, _channels, _blocks, _seRatio,
+                _policyHead, _valueHead, _valueHidden);
+    }
+
+    @Override
+    public String toString() {
+        String trunk = _residual
+                ? _blocks + "x" + _channels + " residual"
+                        + (_seRatio > 0 ? " with se/" + _seRatio : "")
+                : "classic " + _channels;
+        return String.format("%s (%s, policy %s, value %s)", _name, trunk,
+                _policyHead, _valueHead);
+    }
+
+    private final String _name;
+    private final boolean _residual;
+    private final int _channels, _blocks, _seRatio;
+    private final Head _policyHead, _valueHead;
+    private final int _valueHidden;
+}
@@ -3,135 +3,348 @@ package ataxx;
 import ai.djl.Device;
 import ai.djl.MalformedModelException;
 import ai.djl.ndarray.NDArray;
-import ai.djl.ndarray.NDArrays;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import ai.djl.nn.Block;
+import ai.djl.nn.Parameter;
 import ai.djl.training.GradientCollector;
 import ai.djl.training.ParameterStore;
-import ai.djl.training.optimizer.Optimizer;
-import ai.djl.training.tracker.Tracker;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-
-import java.util.ArrayList;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class NeuralNet {
+public class NeuralNet implements Evaluator {
 
     static final float LEARNING_RATE = 0.001f;
     static final float DROPOUT = 0.3f;
     static final int EPOCHS = 10;
     static final int BATCH_SIZE = 64;
-    static final int NUM_CHANNELS = 512;
+    /** network built when no other profile is asked for */
+    static final NetProfile PROFILE = NetProfile.CLASSIC;
+    static final boolean AUGMENT = true;
+    /** writes saveAsync files one at a time, in the order requested */
+    static final ExecutorService WRITER =
+            Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "nnet-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
 
     NeuralNet(Game game) {
+        this(game, PROFILE);
+    }
+
+    NeuralNet(Game game, NetProfile profile) {
         _game = game;
+        _profile = profile;
         _manager = NDManager.newBaseManager();
         _inShape = new Shape(1).addAll(_game.boardShape());
-        _cnn = new CNN(_game, DROPOUT, NUM_CHANNELS);
+        _cnn = new CNN(_game, profile, DROPOUT);
         _cnn.initialize(_manager, DataType.FLOAT32, _inShape);
         _params = new ParameterStore(_manager, false);
-        Tracker lr = Tracker.fixed(LEARNING_RATE);
-        Optimizer optimizer = Optimizer.adam()
-                .optLearningRateTracker(lr).build();
+        _optimizer = new AdamOptimizer(LEARNING_RATE,
+                _manager.newSubManager());
         _params.setParameterServer(
-                _manager.getEngine().newParameterServer(optimizer),
+                _manager.getEngine().newParameterServer(_optimizer),
                 new Device[]{_manager.getDevice()});
     }
 
-    void train(ArrayList<NDList> examples) {
-        int n = examples.size();
+    /** trains for EPOCHS passes of minibatches sampled uniformly from
+     *  replay, each pass drawing as many examples as replay holds;
+     *  batches are assembled in the background */
+    void train(ReplayBuffer replay) {
+        int n = replay.size();
+        int batchesPerEpoch = (n + BATCH_SIZE - 1) / BATCH_SIZE;
         System.out.println("\ttraining nnet: ");
-        for (int e = 0; e < EPOCHS; e += 1) {
-            float vLosses = 0, piLosses = 0;
-            for (int b0 = 0; b0 < n; b0 += BATCH_SIZE) {
-                NDManager submanager = _manager.newSubManager();
-                int b1 = Math.min(n, b0 + BATCH_SIZE);
-                Object[] batch = batch(examples.subList(b0, b1), submanager);
-                NDList exBoards = (NDList) batch[0];
-                NDArray exPi = (NDArray) batch[1], exV = (NDArray) batch[2];
-                try (GradientCollector collector = newGC()) {
-                    NDList out = _cnn.forward(_params, exBoards, true);
-                    NDArray outPi = out.get(0), outV = out.get(1);
-                    NDArray piLoss = exPi.mul(outPi).mean().neg();
-                    NDArray vLoss = exV.sub(outV).square().mean();
-                    NDArray loss = piLoss.add(vLoss);
-                    collector.backward(loss);
-                    _params.updateAllParameters();
-                    piLosses += piLoss.getFloat(0);
-                    vLosses += vLoss.getFloat(0);
+        try (BatchProducer producer = new BatchProducer(_game, replay,
+                BATCH_SIZE, EPOCHS * batchesPerEpoch, AUGMENT,
+                new Random(Main.RAND.nextLong()))) {
+            for (int e = 0; e < EPOCHS; e += 1) {
+                float[] losses = new float[2];
+                long waitNanos = 0, computeNanos = 0;
+                for (int b = 0; b < batchesPerEpoch; b += 1) {
+                    NDManager submanager = _manager.newSubManager();
+                    long start = System.nanoTime();
+                    NDList batch = producer.next(submanager);
+                    long ready = System.nanoTime();
+                    trainStep(batch, losses);
+                    submanager.close();
+                    waitNanos += ready - start;
+                    computeNanos += System.nanoTime() - ready;
                 }
-                submanager.close();
+                float piLosses = losses[0] / BATCH_SIZE;
+                float vLosses = losses[1] / BATCH_SIZE;
+                String format = "\t\tepoch: %s, pi: %s, v: %s, "
+                        + "data wait: %d ms, compute: %d ms";
+                System.out.println(String.format(format, e, piLosses,
+                        vLosses, waitNanos / 1000000, computeNanos / 1000000));
             }
-            piLosses /= BATCH_SIZE;
-            vLosses /= BATCH_SIZE;
-            String format = "\t\tepoch: %s, pi: %s, v: %s";
-            System.out.println(String.format(format, e, piLosses, vLosses));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
+        _version += 1;
     }
 
-    Object[] batch(List<NDList> sublist, NDManager manager) {
-        NDList bl = new NDList(), pl = new NDList(), vl = new NDList();
-        for (NDList ex : sublist) {
-            bl.add(ex.get(0));
-            pl.add(ex.get(1));
-            vl.add(ex.get(2));
+    /** takes one optimizer step on batch, a list of boards, target
+     *  policies and target values, adding its policy and value losses
+     *  to losses[0] and losses[1] */
+    void trainStep(NDList batch, float[] losses) {
+        Metrics.TrainStepEvent event = new Metrics.TrainStepEvent();
+        event.begin();
+        long start = System.nanoTime();
+        NDList exBoards = new NDList(batch.get(0));
+        NDArray exPi = batch.get(1), exV = batch.get(2);
+        try (GradientCollector collector = newGC()) {
+            NDList out = _cnn.forward(_params, exBoards, true);
+            NDArray outPi = out.get(0), outV = out.get(1);
+            NDArray piLoss = exPi.mul(outPi).mean().neg();
+            NDArray vLoss = exV.sub(outV).square().mean();
+            NDArray loss = piLoss.add(vLoss);
+            collector.backward(loss);
+            losses[0] += piLoss.getFloat(0);
+            losses[1] += vLoss.getFloat(0);
         }
-        NDArray b = NDArrays.stack(bl);
-        NDArray p = NDArrays.stack(pl);
-        NDArray v = NDArrays.stack(vl);
-        b.attach(manager);
-        p.attach(manager);
-        v.attach(manager);
-        return new Object[]{new NDList(b), p, v};
+        _params.updateAllParameters();
+        Metrics.TRAIN_STEP_MICROS.record((System.nanoTime() - start) / 1000);
+        event.batchSize = (int) batch.get(0).getShape().get(0);
+        event.commit();
     }
 
     GradientCollector newGC() {
         return _manager.getEngine().newGradientCollector();
     }
 
-    NDList predict(NDArray board) {
-        NDList reshaped = new NDList(board.reshape(_inShape));
-        NDList result = _cnn.forward(_params, reshaped, false);
-        NDArray policy = result.get(0).get(0);
-        NDArray value = result.get(1).get(0);
-        return new NDList(policy, value);
+    /** returns log policies and values for a [n, 2, SIDE, SIDE] batch */
+    NDList predictBatch(NDArray boards) {
+        return _cnn.forward(_params, new NDList(boards), false);
+    }
+
+    /** writes the log policies of the first n boards into logPolicies
+     *  and their values into values. The boards are encoded into an
+     *  input array kept for batches of n, and everything the forward
+     *  pass creates is closed before returning */
+    synchronized void predict(Board[] boards, int n,
+                              float[] logPolicies, float[] values) {
+        if (_cpuInference) {
+            cpuNet().evaluate(boards, n, logPolicies, values);
+            return;
+        }
+        int size = (int) _inShape.size();
+        if (_inputData.length < n * size) {
+            _inputData = new int[n * size];
+        }
+        for (int i = 0; i < n; i += 1) {
+            _game.encode(boards[i], _inputData, i * size);
+        }
+        NDArray input = input(n);
+        input.set(IntBuffer.wrap(_inputData, 0, n * size));
+        try (NDManager scope = _manager.newSubManager()) {
+            input.tempAttach(scope);
+            NDList prediction = predictBatch(input);
+            prediction.get(0).toByteBuffer().asFloatBuffer()
+                    .get(logPolicies, 0, n * _game.actionSize());
+            prediction.get(1).toByteBuffer().asFloatBuffer()
+                    .get(values, 0, n);
+        }
+    }
+
+    @Override
+    public void evaluate(Board[] boards, int n,
+                         float[] logPolicies, float[] values) {
+        predict(boards, n, logPolicies, values);
+    }
+
+    /** number of times the weights have been trained or loaded */
+    @Override
+    public long version() {
+        return _version;
+    }
+
+    NetProfile profile() {
+        return _profile;
     }
 
     NDManager getNDManager() {
         return _manager;
     }
 
+    /** returns a copy of the current weights held in host memory */
+    Snapshot snapshot() {
+        List<Parameter> params = _cnn.getParameters().values();
+        float[][] weights = new float[params.size()][];
+        for (int i = 0; i < weights.length; i += 1) {
+            weights[i] = params.get(i).getArray().toFloatArray();
+        }
+        return new Snapshot(weights);
+    }
+
+    /** sets the weights to those in snapshot, which must come from a
+     *  network of the same shape */
+    void restore(Snapshot snapshot) {
+        List<Parameter> params = _cnn.getParameters().values();
+        for (int i = 0; i < snapshot._weights.length; i += 1) {
+            params.get(i).getArray().set(snapshot._weights[i]);
+        }
+        _version += 1;
+    }
+
+    /** returns a new network with a copy of these weights, predicting
+     *  the same way */
+    NeuralNet copy() {
+        NeuralNet copy = new NeuralNet(_game, _profile);
+        copy.restore(snapshot());
+        if (_cpuInference) {
+            copy.cpuInference(_cpuInt8);
+        }
+        return copy;
+    }
+
+    /** makes predict evaluate through a CpuNet exported from the
+     *  current weights, quantized to int8 if int8 is set; the network
+     *  must have the classic profile */
+    synchronized void cpuInference(boolean int8) {
+        if (_profile.residual()) {
+            throw new IllegalArgumentException(
+                    "CPU inference needs the classic profile, not "
+                    + _profile);
+        }
+        _cpuInference = true;
+        _cpuInt8 = int8;
+        _cpuNet = null;
+    }
+
     void save(File file) {
-        try {
-            FileOutputStream fos = new FileOutputStream(file);
-            DataOutputStream dos = new DataOutputStream(fos);
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
             _cnn.saveParameters(dos);
         } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
 
+    /** serializes the current weights and writes them to file in the
+     *  background, replacing it only once the write is on disk */
+    CompletableFuture<Void> saveAsync(File file) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bytes)) {
+            _cnn.saveParameters(dos);
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        return CompletableFuture.runAsync(() -> {
+            Path target = file.toPath().toAbsolutePath();
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            try {
+                try (FileOutputStream out = new FileOutputStream(
+                        temp.toFile())) {
+                    bytes.writeTo(out);
+                    out.getFD().sync();
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }, WRITER);
+    }
+
     void load(File file) {
-        try {
-            FileInputStream fis = new FileInputStream(file);
-            DataInputStream dis = new DataInputStream(fis);
+        try (DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
             _cnn.loadParameters(_manager, dis);
+            _version += 1;
         } catch (IOException | MalformedModelException ex) {
             ex.printStackTrace();
         }
     }
 
+    /** returns a CpuNet with the current weights, exporting them again
+     *  after they change */
+    private CpuNet cpuNet() {
+        long version = _version;
+        if (_cpuNet == null || _cpuNetVersion != version) {
+            _cpuNet = new CpuNet(_game, _profile, snapshot(), _cpuInt8);
+            _cpuNetVersion = version;
+        }
+        return _cpuNet;
+    }
+
+    /** returns the input array for batches of n, creating it on first
+     *  use */
+    private NDArray input(int n) {
+        if (_inputs.length <= n) {
+            _inputs = Arrays.copyOf(_inputs, n + 1);
+        }
+        if (_inputs[n] == null) {
+            _inputs[n] = _manager.create(
+                    new Shape(n).addAll(_game.boardShape()), DataType.INT32);
+        }
+        return _inputs[n];
+    }
+
+    /** writes the weights and optimizer state for a checkpoint */
+    void writeState(DataOutputStream out) throws IOException {
+        _cnn.saveParameters(out);
+        _optimizer.save(out, _cnn.getParameters().values());
+    }
+
+    /** reads state written by writeState */
+    void readState(DataInputStream in) throws IOException {
+        try {
+            _cnn.loadParameters(_manager, in);
+        } catch (MalformedModelException ex) {
+            throw new IOException(ex);
+        }
+        _optimizer.load(in, _cnn.getParameters().values());
+        _version += 1;
+    }
+
+    /** weights of a network at some point, one array per parameter */
+    static final class Snapshot {
+
+        Snapshot(float[][] weights) {
+            _weights = weights;
+        }
+
+        /** values of parameter i, in the order the network lists them */
+        float[] weight(int i) {
+            return _weights[i];
+        }
+
+        private final float[][] _weights;
+    }
+
     private Game _game;
+    private NetProfile _profile;
     private Block _cnn;
     private Shape _inShape;
     private NDManager _manager;
     private ParameterStore _params;
+    private AdamOptimizer _optimizer;
+    /** preallocated predict inputs, indexed by batch size */
+    private NDArray[] _inputs = new NDArray[0];
+    private int[] _inputData = new int[0];
+    /** whether predict goes through _cpuNet, and with int8 weights */
+    private boolean _cpuInference, _cpuInt8;
+    private CpuNet _cpuNet;
+    private long _cpuNetVersion;
+    private volatile long _version;
 }
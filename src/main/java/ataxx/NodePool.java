@@ -0,0 +1,482 @@
+package ataxx;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** Search statistics for MCTS stored as parallel primitive arrays.
+ *  Nodes are looked up by position hash through an open addressing
+ *  index. Each expanded node owns a contiguous run of edges, one per
+ *  legal action, holding its prior, visit count and value sum.
+ *
+ *  Storage grows up to a fixed number of bytes and never beyond; once
+ *  full, new positions are not stored until sweep evicts the nodes
+ *  least worth keeping, judged by visits and age.
+ *
+ *  Safe for concurrent searches: adding and expanding nodes take a
+ *  write lock, everything else a read lock, and statistics of a node
+ *  and its edges are updated under one of a set of striped locks. */
+final class NodePool {
+
+    NodePool(long maxBytes) {
+        _maxBytes = maxBytes;
+        int nodeCapacity = (int) Math.min(INITIAL_NODES,
+                maxBytes / (NODE_BYTES + EDGES_PER_NODE * EDGE_BYTES));
+        nodeCapacity = Math.max(nodeCapacity, 1);
+        _nodeKeys = new long[nodeCapacity];
+        _nodeValues = new float[nodeCapacity];
+        _nodeVisits = new int[nodeCapacity];
+        _firstEdges = new int[nodeCapacity];
+        _numEdges = new int[nodeCapacity];
+        _nodeAges = new int[nodeCapacity];
+        int edgeCapacity = nodeCapacity * EDGES_PER_NODE;
+        _edgeActions = new int[edgeCapacity];
+        _edgePriors = new float[edgeCapacity];
+        _edgeVisits = new int[edgeCapacity];
+        _edgeValueSums = new float[edgeCapacity];
+        _edgeOwners = new int[edgeCapacity];
+        _index = new int[indexSize(nodeCapacity)];
+        _lock = new ReentrantReadWriteLock();
+        _stripes = new Object[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i += 1) {
+            _stripes[i] = new Object();
+        }
+        _hits = new LongAdder();
+        _misses = new LongAdder();
+        _rejected = new LongAdder();
+    }
+
+    /** returns node with hash key, or -1 if not present */
+    int find(long key) {
+        _lock.readLock().lock();
+        try {
+            int node = indexOf(key);
+            (node >= 0 ? _hits : _misses).increment();
+            return node;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /** adds an unexpanded node for key with game value and returns it,
+     *  or returns the existing node if key was added concurrently, or -1
+     *  if the pool is full */
+    int add(long key, float value) {
+        _lock.writeLock().lock();
+        try {
+            int node = indexOf(key);
+            if (node >= 0) {
+                return node;
+            }
+            if (_numNodes == _nodeKeys.length && !growNodes()) {
+                _rejected.increment();
+                _full = true;
+                return -1;
+            }
+            node = _numNodes;
+            _numNodes += 1;
+            _nodeKeys[node] = key;
+            _nodeValues[node] = value;
+            _nodeVisits[node] = 0;
+            _firstEdges[node] = UNEXPANDED;
+            _numEdges[node] = 0;
+            _nodeAges[node] = _age;
+            place(node);
+            return node;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /** sets the game value of node, nonzero if the game is decided */
+    void setValue(int node, float value) {
+        _lock.writeLock().lock();
+        try {
+            _nodeValues[node] = value;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /** reserves unexpanded node for expansion by the caller, returns
+     *  false if it is already expanded or reserved */
+    boolean claim(int node) {
+        _lock.readLock().lock();
+        try {
+            synchronized (stripe(node)) {
+                if (_firstEdges[node] != UNEXPANDED) {
+                    return false;
+                }
+                _firstEdges[node] = CLAIMED;
+                return true;
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /** returns node, if still reserved by claim, to unexpanded */
+    void unclaim(int node) {
+        _lock.readLock().lock();
+        try {
+            synchronized (stripe(node)) {
+                if (_firstEdges[node] == CLAIMED) {
+                    _firstEdges[node] = UNEXPANDED;
+                }
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /** gives node one edge per action with the matching prior, or
+     *  leaves it unexpanded and returns false if the pool is full */
+    boolean expand(int node, int[] actions, float[] priors, int n) {
+        _lock.writeLock().lock();
+        try {
+            if (_numEdgesUsed + n > _edgeActions.length
+                    && !growEdges(_numEdgesUsed + n)) {
+                _firstEdges[node] = UNEXPANDED;
+                _rejected.increment();
+                _full = true;
+                return false;
+            }
+            int first = _numEdgesUsed;
+            _numEdgesUsed += n;
+            System.arraycopy(actions, 0, _edgeActions, first, n);
+            System.arraycopy(priors, 0, _edgePriors, first, n);
+            Arrays.fill(_edgeVisits, first, first + n, 0);
+            Arrays.fill(_edgeValueSums, first, first + n, 0);
+            _edgeOwners[first] = node;
+            _numEdges[node] = n;
+            _firstEdges[node] = first;
+            return true;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /** returns edge of node with the highest upper confidence bound */
+    int select(int node, float cpuct) {
+        _lock.readLock().lock();
+        try {
+            int first = _firstEdges[node], last = first + _numEdges[node];
+            float explore = cpuct
+                    * (float) Math.sqrt(_nodeVisits[node] + Main.EPS);
+            float bestUCB = -Float.MAX_VALUE;
+            int bestEdge = first;
+            for (int e = first; e < last; e += 1) {
+                int n = _edgeVisits[e];
+                float q = n == 0 ? 0 : _edgeValueSums[e] / n;
+                float ucb = q + explore * _edgePriors[e] / (1 + n);
+                if (ucb > bestUCB) {
+                    bestUCB = ucb;
+                    bestEdge = e;
+                }
+            }
+            return bestEdge;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /** records a visit through edge of node that returned value */
+    void update(int node, int edge, float value) {
+        backup(node, edge, value, 0);
+    }
+
+    /** makes edge of node look like it lost loss more times, steering
+     *  concurrent descents elsewhere until backup removes it */
+    void addVirtualLoss(int node, int edge, int loss) {
+        _lock.readLock().lock();
+        try {
+            synchronized (stripe(node)) {
+                _edgeVisits[edge] += loss;
+                _edgeValueSums[edge] -= loss;
+                _nodeVisits[node] += loss;
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /** removes virtual loss from edge of node and records value */
+    void backup(int node, int edge, float value, int loss) {
+        _lock.readLock().lock();
+        try {
+            synchronized (stripe(node)) {
+                _edgeVisits[edge] += 1 - loss;
+                _edgeValueSums[edge] += value + loss;
+                _nodeVisits[node] += 1 - loss;
+                _nodeAges[node] = _age;
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /** starts a new search from root: ages every stored node by one
+     *  and, if the pool is over its high water mark or turned positions
+     *  away during the last search, evicts the least valuable nodes
+     *  other than root. Must not run during a search. */
+    void sweep(long root) {
+        _lock.writeLock().lock();
+        try {
+            _age += 1;
+            long used = usedBytes();
+            if (_full || used > _maxBytes * HIGH_WATER) {
+                long stored = used - _index.length * 4L;
+                evict(indexOf(root), Math.max(stored / 2,
+                        used - (long) (_maxBytes * LOW_WATER)));
+            }
+            _full = false;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /** forgets all nodes, keeping allocated storage */
+    void clear() {
+        _lock.writeLock().lock();
+        try {
+            Arrays.fill(_index, 0);
+            _numNodes = 0;
+            _numEdgesUsed = 0;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /** returns hit, eviction and occupancy counts */
+    String report() {
+        long hits = _hits.sum(), lookups = hits + _misses.sum();
+        String format = "nodes: %d, edges: %d, used: %.1f%% of %d MB, "
+                + "hits: %d/%d, evicted: %d, rejected: %d";
+        return String.format(format, _numNodes, _numEdgesUsed,
+                100.0 * usedBytes() / _maxBytes, _maxBytes >> 20,
+                hits, lookups, _evicted, _rejected.sum());
+    }
+
+    // unlocked reads: stale values only cost a retry during a search
+
+    boolean isExpanded(int node) {
+        return _firstEdges[node] >= 0;
+    }
+
+    float value(int node) {
+        return _nodeValues[node];
+    }
+
+    int firstEdge(int node) {
+        return _firstEdges[node];
+    }
+
+    int numEdges(int node) {
+        return _numEdges[node];
+    }
+
+    int action(int edge) {
+        _lock.readLock().lock();
+        try {
+            return _edgeActions[edge];
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    int edgeVisits(int edge) {
+        return _edgeVisits[edge];
+    }
+
+    float edgeValueSum(int edge) {
+        return _edgeValueSums[edge];
+    }
+
+    int size() {
+        return _numNodes;
+    }
+
+    /** removes at least bytes worth of the lowest priority nodes other
+     *  than keep, then compacts the survivors to the front, using the
+     *  index as scratch space before rebuilding it */
+    private void evict(int keep, long bytes) {
+        long[] histogram = new long[NUM_BUCKETS];
+        for (int n = 0; n < _numNodes; n += 1) {
+            histogram[bucket(n)] += NODE_BYTES + _numEdges[n] * EDGE_BYTES;
+        }
+        int threshold = 0;
+        for (long freed = 0; freed < bytes && threshold < NUM_BUCKETS; ) {
+            freed += histogram[threshold];
+            threshold += 1;
+        }
+        int[] remap = _index;
+        for (int n = 0; n < _numNodes; n += 1) {
+            remap[n] = n == keep || bucket(n) >= threshold ? 1 : -1;
+        }
+        int numEdges = 0;
+        for (int e = 0; e < _numEdgesUsed; ) {
+            int owner = _edgeOwners[e], length = _numEdges[owner];
+            if (remap[owner] > 0) {
+                moveEdges(e, numEdges, length);
+                _firstEdges[owner] = numEdges;
+                numEdges += length;
+            }
+            e += length;
+        }
+        int numNodes = 0;
+        for (int n = 0; n < _numNodes; n += 1) {
+            if (remap[n] > 0) {
+                moveNode(n, numNodes);
+                remap[n] = numNodes;
+                numNodes += 1;
+            }
+        }
+        _evicted += _numNodes - numNodes;
+        _numNodes = numNodes;
+        _numEdgesUsed = numEdges;
+        Arrays.fill(_index, 0);
+        for (int n = 0; n < _numNodes; n += 1) {
+            place(n);
+            if (_firstEdges[n] >= 0) {
+                _edgeOwners[_firstEdges[n]] = n;
+            }
+        }
+    }
+
+    /** eviction bucket of node, higher for nodes more worth keeping:
+     *  visited often and touched recently. Backups touch every node on
+     *  their path, so nodes off the current root's subtree age out. */
+    private int bucket(int node) {
+        double priority = (_nodeVisits[node] + 1.0)
+                / (1L << Math.min(_age - _nodeAges[node], 30));
+        int bucket = (int) (Math.log(priority) / Math.log(2) * 4) + NUM_BUCKETS / 2;
+        return Math.max(0, Math.min(NUM_BUCKETS - 1, bucket));
+    }
+
+    private void moveNode(int from, int to) {
+        _nodeKeys[to] = _nodeKeys[from];
+        _nodeValues[to] = _nodeValues[from];
+        _nodeVisits[to] = _nodeVisits[from];
+        _firstEdges[to] = _firstEdges[from];
+        _numEdges[to] = _numEdges[from];
+        _nodeAges[to] = _nodeAges[from];
+    }
+
+    private void moveEdges(int from, int to, int length) {
+        System.arraycopy(_edgeActions, from, _edgeActions, to, length);
+        System.arraycopy(_edgePriors, from, _edgePriors, to, length);
+        System.arraycopy(_edgeVisits, from, _edgeVisits, to, length);
+        System.arraycopy(_edgeValueSums, from, _edgeValueSums, to, length);
+    }
+
+    private int indexOf(long key) {
+        int mask = _index.length - 1;
+        for (int i = mix(key) & mask; _index[i] != 0; i = (i + 1) & mask) {
+            int node = _index[i] - 1;
+            if (_nodeKeys[node] == key) {
+                return node;
+            }
+        }
+        return -1;
+    }
+
+    private void place(int node) {
+        int mask = _index.length - 1;
+        int i = mix(_nodeKeys[node]) & mask;
+        while (_index[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        _index[i] = node + 1;
+    }
+
+    /** doubles node storage within the byte budget, false if full */
+    private boolean growNodes() {
+        int capacity = _nodeKeys.length * 2;
+        long extra = (long) _nodeKeys.length * NODE_BYTES
+                + (indexSize(capacity) - _index.length) * 4L;
+        if (allocatedBytes() + extra > _maxBytes) {
+            return false;
+        }
+        _nodeKeys = Arrays.copyOf(_nodeKeys, capacity);
+        _nodeValues = Arrays.copyOf(_nodeValues, capacity);
+        _nodeVisits = Arrays.copyOf(_nodeVisits, capacity);
+        _firstEdges = Arrays.copyOf(_firstEdges, capacity);
+        _numEdges = Arrays.copyOf(_numEdges, capacity);
+        _nodeAges = Arrays.copyOf(_nodeAges, capacity);
+        if (indexSize(capacity) > _index.length) {
+            _index = new int[indexSize(capacity)];
+            for (int n = 0; n < _numNodes; n += 1) {
+                place(n);
+            }
+        }
+        return true;
+    }
+
+    /** grows edge storage to at least needed within the byte budget,
+     *  false if full */
+    private boolean growEdges(int needed) {
+        long budget = (_maxBytes - allocatedBytes()) / EDGE_BYTES
+                + _edgeActions.length;
+        int capacity = (int) Math.min(budget,
+                Math.max(needed, _edgeActions.length * 2L));
+        if (capacity < needed) {
+            return false;
+        }
+        _edgeActions = Arrays.copyOf(_edgeActions, capacity);
+        _edgePriors = Arrays.copyOf(_edgePriors, capacity);
+        _edgeVisits = Arrays.copyOf(_edgeVisits, capacity);
+        _edgeValueSums = Arrays.copyOf(_edgeValueSums, capacity);
+        _edgeOwners = Arrays.copyOf(_edgeOwners, capacity);
+        return true;
+    }
+
+    private long usedBytes() {
+        return (long) _numNodes * NODE_BYTES + _index.length * 4L
+                + (long) _numEdgesUsed * EDGE_BYTES;
+    }
+
+    private long allocatedBytes() {
+        return (long) _nodeKeys.length * NODE_BYTES + _index.length * 4L
+                + (long) _edgeActions.length * EDGE_BYTES;
+    }
+
+    private Object stripe(int node) {
+        return _stripes[node & (NUM_STRIPES - 1)];
+    }
+
+    private static int indexSize(int nodeCapacity) {
+        return Integer.highestOneBit(nodeCapacity) * 4;
+    }
+
+    private static int mix(long key) {
+        return (int) (key ^ (key >>> 32));
+    }
+
+    /** initial node storage, and edge storage reserved per node */
+    private static final int INITIAL_NODES = 1 << 12, EDGES_PER_NODE = 16;
+    /** bytes of array storage per node and per edge */
+    private static final int NODE_BYTES = 28, EDGE_BYTES = 20;
+    /** fraction of the budget that triggers eviction, and the fraction
+     *  eviction brings usage back down to */
+    private static final double HIGH_WATER = 0.75, LOW_WATER = 0.5;
+    /** quarter-octave priority buckets used to pick eviction victims */
+    private static final int NUM_BUCKETS = 256;
+    /** number of locks guarding node statistics, a power of two */
+    private static final int NUM_STRIPES = 64;
+    /** first edge markers for nodes without edges */
+    private static final int UNEXPANDED = -1, CLAIMED = -2;
+
+    private final long _maxBytes;
+    private long[] _nodeKeys;
+    private float[] _nodeValues;
+    private int[] _nodeVisits, _firstEdges, _numEdges, _nodeAges;
+    private int[] _edgeActions, _edgeVisits, _edgeOwners;
+    private float[] _edgePriors, _edgeValueSums;
+    private int[] _index;
+    private int _numNodes, _numEdgesUsed, _age;
+    private long _evicted;
+    private boolean _full;
+    private final LongAdder _hits, _misses, _rejected;
+    private final ReentrantReadWriteLock _lock;
+    private final Object[] _stripes;
+}
@@ -0,0 +1,131 @@
+package ataxx;
+
+/** Fixed-capacity ring of training examples in primitive arrays. A
+ *  canonical board is kept as its two piece masks and jump count, a
+ *  policy as its nonzero entries in a second ring shared by all
+ *  examples, and a value as a float. Adding to a full buffer drops the
+ *  oldest examples. Examples are numbered from 0, the oldest, to
+ *  size() - 1. */
+final class ReplayBuffer {
+
+    /** average policy entries reserved per example */
+    static final int ENTRIES_PER_EXAMPLE = 16;
+
+    ReplayBuffer(int capacity) {
+        this(capacity, capacity * ENTRIES_PER_EXAMPLE);
+    }
+
+    ReplayBuffer(int capacity, int entryCapacity) {
+        _red = new long[capacity];
+        _blue = new long[capacity];
+        _jumps = new byte[capacity];
+        _values = new float[capacity];
+        _firstEntries = new long[capacity];
+        _numEntries = new short[capacity];
+        _actions = new short[entryCapacity];
+        _probs = new float[entryCapacity];
+    }
+
+    /** appends canonical with target policy and value, evicting the
+     *  oldest examples if needed */
+    void add(Board canonical, float[] policy, float value) {
+        int numEntries = 0;
+        for (float p : policy) {
+            numEntries += p != 0 ? 1 : 0;
+        }
+        if (numEntries > _actions.length) {
+            throw new IllegalArgumentException("policy too dense");
+        }
+        while (_size == _red.length
+                || _entryHead - _entryTail + numEntries > _actions.length) {
+            evict();
+        }
+        int slot = (_first + _size) % _red.length;
+        _red[slot] = canonical.red();
+        _blue[slot] = canonical.blue();
+        _jumps[slot] = (byte) canonical.jumps();
+        _values[slot] = value;
+        _firstEntries[slot] = _entryHead;
+        _numEntries[slot] = (short) numEntries;
+        for (int a = 0; a < policy.length; a += 1) {
+            if (policy[a] != 0) {
+                int e = (int) (_entryHead % _actions.length);
+                _actions[e] = (short) a;
+                _probs[e] = policy[a];
+                _entryHead += 1;
+            }
+        }
+        _size += 1;
+        _added += 1;
+    }
+
+    /** number of examples held */
+    int size() {
+        return _size;
+    }
+
+    /** number of examples ever added */
+    long added() {
+        return _added;
+    }
+
+    long red(int i) {
+        return _red[slot(i)];
+    }
+
+    long blue(int i) {
+        return _blue[slot(i)];
+    }
+
+    int jumps(int i) {
+        return _jumps[slot(i)];
+    }
+
+    float value(int i) {
+        return _values[slot(i)];
+    }
+
+    /** writes the nonzero policy entries of example i into actions and
+     *  probs, returning how many there are */
+    int policy(int i, int[] actions, float[] probs) {
+        int slot = slot(i), n = _numEntries[slot];
+        long first = _firstEntries[slot];
+        for (int k = 0; k < n; k += 1) {
+            int e = (int) ((first + k) % _actions.length);
+            actions[k] = _actions[e];
+            probs[k] = _probs[e];
+        }
+        return n;
+    }
+
+    /** returns occupancy and memory use */
+    String report() {
+        long bytes = 8L * 3 * _red.length + 7L * _red.length
+                + 6L * _actions.length;
+        String format = "examples: %d/%d, policy entries: %d/%d, %d MB";
+        return String.format(format, _size, _red.length,
+                _entryHead - _entryTail, _actions.length, bytes >> 20);
+    }
+
+    private void evict() {
+        _entryTail += _numEntries[_first];
+        _first = (_first + 1) % _red.length;
+        _size -= 1;
+    }
+
+    private int slot(int i) {
+        return (_first + i) % _red.length;
+    }
+
+    private final long[] _red, _blue, _firstEntries;
+    private final byte[] _jumps;
+    private final float[] _values;
+    private final short[] _numEntries;
+    private final short[] _actions;
+    private final float[] _probs;
+    /** slot of example 0, examples held and ever added */
+    private int _first, _size;
+    private long _added;
+    /** total policy entries ever written, and those evicted */
+    private long _entryHead, _entryTail;
+}
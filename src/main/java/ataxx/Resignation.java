@@ -0,0 +1,207 @@
+package ataxx;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/** Decides when a game ends early by resignation and keeps the
+ *  threshold for it calibrated. A player resigns once the mean value
+ *  of its search and the value of its best move have both been below
+ *  the threshold for NUM_MOVES of its moves in a row.
+ *
+ *  Some games are played out to the end instead. For each side of
+ *  those the highest threshold at which it would have resigned is kept
+ *  with whether it went on to lose, and after every such game the
+ *  threshold is set to the highest one at which at most
+ *  TARGET_FALSE_RATE of the sides that would have resigned did not
+ *  lose. */
+final class Resignation {
+
+    static final int NUM_MOVES = 3;
+    /** share of self-play games played out to measure false
+     *  resignations */
+    static final float PLAY_OUT_FRACTION = 0.1f;
+    static final float TARGET_FALSE_RATE = 0.05f;
+    /** thresholds range from never resigning to resigning while the
+     *  search still sees some chances */
+    static final float INITIAL_THRESHOLD = -0.9f;
+    static final float MIN_THRESHOLD = -1, MAX_THRESHOLD = -0.5f;
+    /** played out sides needed before calibrating, and the most kept */
+    static final int MIN_SAMPLES = 100, MAX_SAMPLES = 2000;
+
+    Resignation() {
+        _threshold = INITIAL_THRESHOLD;
+        _sampleThresholds = new float[MAX_SAMPLES];
+        _sampleLost = new boolean[MAX_SAMPLES];
+    }
+
+    /** returns the state of a new game, which never resigns and
+     *  calibrates the threshold when it ends if playOut is set */
+    Tracker newGame(boolean playOut) {
+        return new Tracker(playOut);
+    }
+
+    float threshold() {
+        return _threshold;
+    }
+
+    /** writes the threshold and the kept samples, oldest first, for a
+     *  checkpoint */
+    synchronized void writeState(DataOutputStream out) throws IOException {
+        out.writeFloat(_threshold);
+        out.writeInt(_numSamples);
+        int oldest = (_nextSample - _numSamples + MAX_SAMPLES) % MAX_SAMPLES;
+        for (int k = 0; k < _numSamples; k += 1) {
+            int i = (oldest + k) % MAX_SAMPLES;
+            out.writeFloat(_sampleThresholds[i]);
+            out.writeBoolean(_sampleLost[i]);
+        }
+    }
+
+    /** reads state written by writeState, keeping the newest
+     *  MAX_SAMPLES samples */
+    synchronized void readState(DataInputStream in) throws IOException {
+        float threshold = in.readFloat();
+        int numSamples = in.readInt();
+        if (numSamples < 0) {
+            throw new IOException("bad resignation sample count");
+        }
+        _numSamples = 0;
+        _nextSample = 0;
+        for (int k = 0; k < numSamples; k += 1) {
+            _sampleThresholds[_nextSample] = in.readFloat();
+            _sampleLost[_nextSample] = in.readBoolean();
+            _nextSample = (_nextSample + 1) % MAX_SAMPLES;
+            _numSamples = Math.min(_numSamples + 1, MAX_SAMPLES);
+        }
+        _threshold = Math.max(MIN_THRESHOLD,
+                Math.min(threshold, MAX_THRESHOLD));
+    }
+
+    /** returns the threshold and false resignation rate of the kept
+     *  samples at it */
+    synchronized String report() {
+        int resigned = 0, wrong = 0;
+        for (int i = 0; i < _numSamples; i += 1) {
+            if (_sampleThresholds[i] < _threshold) {
+                resigned += 1;
+                wrong += _sampleLost[i] ? 0 : 1;
+            }
+        }
+        String format = "threshold: %.3f, played out sides: %d, "
+                + "would resign: %d, false: %d (%.1f%%)";
+        return String.format(format, _threshold, _numSamples, resigned,
+                wrong, resigned == 0 ? 0.0 : 100.0 * wrong / resigned);
+    }
+
+    /** keeps a side of a played out game that would have resigned
+     *  below threshold, and recalibrates */
+    private synchronized void add(float threshold, boolean lost) {
+        _sampleThresholds[_nextSample] = threshold;
+        _sampleLost[_nextSample] = lost;
+        _nextSample = (_nextSample + 1) % MAX_SAMPLES;
+        _numSamples = Math.min(_numSamples + 1, MAX_SAMPLES);
+        if (_numSamples >= MIN_SAMPLES) {
+            calibrate();
+        }
+    }
+
+    /** sets the threshold to the highest within range at which the
+     *  kept samples resign falsely at most TARGET_FALSE_RATE of the
+     *  time, even counting one more false resignation, so that a few
+     *  lucky samples do not raise it */
+    private void calibrate() {
+        Integer[] order = new Integer[_numSamples];
+        for (int i = 0; i < _numSamples; i += 1) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (i, j) -> Float.compare(
+                _sampleThresholds[i], _sampleThresholds[j]));
+        float best = MIN_THRESHOLD;
+        int resigned = 0, wrong = 0;
+        for (int k = 0; k <= _numSamples; k += 1) {
+            float threshold = k < _numSamples
+                    ? Math.min(_sampleThresholds[order[k]], MAX_THRESHOLD)
+                    : MAX_THRESHOLD;
+            if (threshold > best
+                    && wrong + 1 <= TARGET_FALSE_RATE * (resigned + 1)) {
+                best = threshold;
+            }
+            if (k == _numSamples || threshold == MAX_THRESHOLD) {
+                break;
+            }
+            resigned += 1;
+            wrong += _sampleLost[order[k]] ? 0 : 1;
+        }
+        _threshold = best;
+    }
+
+    /** resignation state of one game */
+    final class Tracker {
+
+        Tracker(boolean playOut) {
+            _playOut = playOut;
+            _scores = new float[2][64];
+            _numScores = new int[2];
+        }
+
+        /** records the values of player's search, its mean and that of
+         *  its best move, and returns true if player resigns */
+        boolean resigns(int player, float meanValue, float bestValue) {
+            int side = player > 0 ? 0 : 1, n = _numScores[side];
+            if (n == _scores[side].length) {
+                _scores[side] = Arrays.copyOf(_scores[side], n * 2);
+            }
+            _scores[side][n] = Math.max(meanValue, bestValue);
+            _numScores[side] = n + 1;
+            if (_playOut || n + 1 < NUM_MOVES) {
+                return false;
+            }
+            float threshold = _threshold;
+            for (int i = n + 1 - NUM_MOVES; i <= n; i += 1) {
+                if (_scores[side][i] >= threshold) {
+                    return false;
+                }
+            }
+            Metrics.RESIGNATIONS.add(1);
+            return true;
+        }
+
+        /** ends a game that red scored result in, calibrating the
+         *  threshold with it if it was played out; a draw, scored
+         *  +-Main.EPS, is a loss for neither side */
+        void finish(float result) {
+            if (!_playOut) {
+                return;
+            }
+            add(resignThreshold(0), result <= -1);
+            add(resignThreshold(1), result >= 1);
+        }
+
+        /** returns the lowest of the highest scores in each run of
+         *  NUM_MOVES moves by side, above which a threshold would have
+         *  made it resign */
+        private float resignThreshold(int side) {
+            float lowest = Float.MAX_VALUE;
+            for (int i = 0; i + NUM_MOVES <= _numScores[side]; i += 1) {
+                float highest = -Float.MAX_VALUE;
+                for (int j = i; j < i + NUM_MOVES; j += 1) {
+                    highest = Math.max(highest, _scores[side][j]);
+                }
+                lowest = Math.min(lowest, highest);
+            }
+            return lowest;
+        }
+
+        private final boolean _playOut;
+        /** max of mean and best value of each move, by side */
+        private float[][] _scores;
+        private int[] _numScores;
+    }
+
+    private volatile float _threshold;
+    private final float[] _sampleThresholds;
+    private final boolean[] _sampleLost;
+    private int _numSamples, _nextSample;
+}
@@ -1,162 +1,348 @@
 package ataxx;
 
-import ai.djl.ndarray.NDArray;
-import ai.djl.ndarray.NDList;
-
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SelfPlay {
 
-    static final File TEMP_SAVE = new File("temp-nnet");
     static final File BEST_SAVE = new File("best-nnet");
+    static final File OFFLINE_SAVE = new File("offline-nnet");
+    /** file every self-play game is appended to */
+    static final File GAME_LOG = new File("self-play.games");
+    /** file rewritten after every session for resume */
+    static final File CHECKPOINT = new File("checkpoint");
+    /** file a line of Metrics is appended to after each phase and every
+     *  METRICS_SECONDS */
+    static final File METRICS = new File("metrics.jsonl");
+    static final long METRICS_SECONDS = 60;
     static final int NUM_LEARN = 1000;
-    static final int NUM_EXAMPLE_GAMES = 100;
+    /** about as many examples per session as 100 games of full
+     *  searches gave */
+    static final int NUM_EXAMPLE_GAMES = 400;
     static final int NUM_COMPARE_GAMES = 40;
-    static final int NUM_EXAMPLES_HISTORY = 20;
+    /** examples kept for training, about 20 sessions' worth */
+    static final int REPLAY_SIZE = 1 << 18;
     static final int TEMP_THRESHOLD = 100;
+    /** chance that a self-play move gets a full search of MCTS.NUM_ITER
+     *  simulations and becomes an example; other moves get a fast
+     *  search of NUM_FAST_ITER and are only played */
+    static final float FULL_SEARCH_PROB = 0.25f;
+    static final int NUM_FAST_ITER = 5;
+    /** end searches early once their most visited move is settled,
+     *  when the move played is the most visited one; moves sampled
+     *  from the visit counts need all of them */
+    static final boolean EARLY_STOP = true;
     static final float WIN_RATE_THRESHOLD = 0.6f;
+    static final int NUM_WORKERS = Runtime.getRuntime().availableProcessors();
+    /** run workers on virtual threads where the runtime has them */
+    static final boolean VIRTUAL_THREADS = false;
 
     SelfPlay(Game game, NeuralNet nnet) {
         _game = game;
         _nnet = nnet;
-        _exampleHistory = new LinkedList<>();
+        _oldNNet = nnet.copy();
+        _service = new InferenceService(game, nnet);
+        _cache = new EvalCache(game, _service);
+        _pool = Executors.newFixedThreadPool(NUM_WORKERS, threadFactory());
+        _resignation = new Resignation();
+        _arena = new Arena(game, _pool, NUM_WORKERS, _resignation);
+        _replay = new ReplayBuffer(REPLAY_SIZE);
+        _replayGames = new ArrayDeque<>();
     }
 
     void learn() {
-        for (int i = 0; i < NUM_LEARN; i += 1) {
+        Metrics.startReporting(METRICS, METRICS_SECONDS);
+        for (int i = _session; i < NUM_LEARN; i += 1) {
             System.out.println("========");
             System.out.println("learning session " + i);
 
-            ArrayList<NDList> examples = new ArrayList<>();
-            System.out.print("\texample self play games:");
-            for (int j = 0; j < NUM_EXAMPLE_GAMES; j += 1) {
-                _mcts = new MCTS(_game, _nnet);
-                examples.addAll(examplesFromGame());
-                System.out.print(" " + j);
-            }
-            System.out.println();
+            Metrics.phase(i, "self-play");
+            playExampleGames();
+            System.out.println("\treplay buffer: " + _replay.report());
+            System.out.println("\tresignation: " + _resignation.report());
+            Metrics.report(METRICS);
 
-            _exampleHistory.add(examples);
-            if (_exampleHistory.size() > NUM_EXAMPLES_HISTORY) {
-                _exampleHistory.poll();
-            }
-            ArrayList<NDList> allExamples = new ArrayList<>();
-            for (ArrayList<NDList> exs : _exampleHistory) {
-                allExamples.addAll(exs);
+            Metrics.phase(i, "training");
+            NeuralNet.Snapshot before = _nnet.snapshot();
+            _oldNNet.restore(before);
+            _nnet.train(_replay);
+            Metrics.report(METRICS);
+
+            Metrics.phase(i, "gating");
+            Metrics.GatingEvent event = new Metrics.GatingEvent();
+            event.begin();
+            long start = System.nanoTime();
+            boolean accepted;
+            try (InferenceService oldService =
+                         new InferenceService(_game, _oldNNet)) {
+                accepted = _arena.accepts(oldService, _cache,
+                        NUM_COMPARE_GAMES, WIN_RATE_THRESHOLD);
             }
-            Collections.shuffle(allExamples, Main.RAND);
-
-            _nnet.save(TEMP_SAVE);
-            NeuralNet oldNNet = new NeuralNet(_game);
-            oldNNet.load(TEMP_SAVE);
-            MCTS oldMCTS = new MCTS(_game, oldNNet);
-            _nnet.train(allExamples);
-            MCTS newMCTS = new MCTS(_game, _nnet);
-
-            int[] numWins = compareNumWins(oldMCTS, newMCTS);
-            int totalWins = numWins[0] + numWins[1];
-            float winRate = (float) numWins[1] / (totalWins);
-            if ( totalWins == 0 || winRate < WIN_RATE_THRESHOLD) {
-                System.out.println("\trejected, winrate: " + winRate);
-                _nnet.load(TEMP_SAVE);
+            Metrics.GATING_MILLIS.record((System.nanoTime() - start) / 1000000);
+            event.session = i;
+            event.accepted = accepted;
+            event.commit();
+            Metrics.report(METRICS);
+            System.out.println("\t" + _arena.report());
+            if (accepted) {
+                _nnet.saveAsync(BEST_SAVE);
             } else {
-                System.out.println("\taccepted, winrate: " + winRate);
-                _nnet.save(BEST_SAVE);
+                _nnet.restore(before);
             }
+            saveCheckpoint(i + 1);
         }
     }
 
-    int[] compareNumWins(MCTS p1, MCTS p2) {
-        System.out.println("\tcomparison games: ");
-        int wins1 = 0, wins2 = 0, half = NUM_COMPARE_GAMES / 2;
+    /** reseeds Main.RAND and writes a checkpoint to resume learning
+     *  from session with that seed */
+    void saveCheckpoint(int session) {
+        long seed = Main.RAND.nextLong();
+        Main.RAND.setSeed(seed);
+        try {
+            new Checkpoint(session, seed, GAME_LOG, GAME_LOG.length(),
+                    replayStart()).save(CHECKPOINT, _resignation, _nnet);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
 
-        System.out.print("\t\told nnet starts:");
-        for (int i = 0; i < half; i += 1) {
-            float result = resultFromGame(p1, p2);
-            wins1 += result == 1 ? 1 : 0;
-            wins2 += result == -1 ? 1 : 0;
-            System.out.print(" " + i);
+    /** loads the checkpoint in file so that learn continues where it
+     *  was written, dropping games logged after it and refilling the
+     *  replay buffer from the games it still held */
+    void resume(File file) throws IOException {
+        Checkpoint checkpoint = Checkpoint.load(file, _resignation, _nnet);
+        _session = checkpoint.session();
+        Main.RAND.setSeed(checkpoint.seed());
+        File log = checkpoint.gameLog();
+        if (checkpoint.gameLogLength() == 0) {
+            return;
         }
-        System.out.println();
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            if (raf.length() > checkpoint.gameLogLength()) {
+                raf.setLength(checkpoint.gameLogLength());
+            }
+        }
+        try (GameReader reader = new GameReader(_game, log,
+                checkpoint.replayStart())) {
+            long gamesRead = 0;
+            while (reader.next()) {
+                if (reader.gamesRead() != gamesRead) {
+                    gamesRead = reader.gamesRead();
+                    _replayGames.add(new long[]{reader.recordOffset(),
+                            _replay.added()});
+                }
+                _replay.add(reader.canonical(), reader.policy(),
+                        reader.value());
+            }
+            System.out.println("resuming at session " + _session + " with "
+                    + gamesRead + " logged games");
+        }
+    }
 
-        System.out.print("\t\tnew nnet starts:");
-        for (int i = 0; i < half; i += 1) {
-            float result = resultFromGame(p2, p1);
-            wins1 += result == -1 ? 1 : 0;
-            wins2 += result == 1 ? 1 : 0;
-            System.out.print(" " + i);
+    /** plays NUM_EXAMPLE_GAMES games of self play on NUM_WORKERS
+     *  threads, adding their examples to the replay buffer in game
+     *  order. Each game draws its random choices from a seed of its
+     *  own, but games are not reproducible: the shared cache answers
+     *  with whichever orientation of a position was evaluated first,
+     *  network results can vary slightly with the batch a position
+     *  lands in, and resignation calibrates on games as they finish. */
+    void playExampleGames() {
+        System.out.print("\texample self play games:");
+        long[] seeds = new long[NUM_EXAMPLE_GAMES];
+        for (int j = 0; j < seeds.length; j += 1) {
+            seeds[j] = Main.RAND.nextLong();
+        }
+        List<GameRecord> records = new ArrayList<>();
+        for (int j = 0; j < NUM_EXAMPLE_GAMES; j += 1) {
+            records.add(null);
+        }
+        AtomicInteger nextGame = new AtomicInteger();
+        List<Callable<MCTS>> workers = new ArrayList<>();
+        for (int w = 0; w < NUM_WORKERS; w += 1) {
+            workers.add(() -> {
+                MCTS mcts = null;
+                Random random = new Random();
+                for (int j = nextGame.getAndIncrement();
+                     j < NUM_EXAMPLE_GAMES;
+                     j = nextGame.getAndIncrement()) {
+                    random.setSeed(seeds[j]);
+                    mcts = new MCTS(_game, _cache, random);
+                    records.set(j, examplesFromGame(mcts, random));
+                    System.out.print(" " + j);
+                }
+                return mcts;
+            });
+        }
+        MCTS lastMCTS = null;
+        try {
+            for (Future<MCTS> result : _pool.invokeAll(workers)) {
+                MCTS mcts = result.get();
+                lastMCTS = mcts != null ? mcts : lastMCTS;
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            ex.printStackTrace();
         }
         System.out.println();
+        if (lastMCTS != null) {
+            System.out.println("\tlast game search table: "
+                    + lastMCTS.report());
+        }
+        System.out.println("\tevaluation cache: " + _cache.report());
+        System.out.println("\tinference: " + _service.report());
 
-        return new int[]{wins1, wins2};
+        records.removeIf(record -> record == null);
+        long[] offsets = null;
+        try {
+            offsets = GameRecord.appendAll(GAME_LOG, records);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        for (int j = 0; j < records.size(); j += 1) {
+            if (offsets != null) {
+                _replayGames.add(new long[]{offsets[j], _replay.added()});
+            }
+            records.get(j).addTo(_game, _replay);
+        }
     }
 
-    float resultFromGame(MCTS p1, MCTS p2) {
-        int player = 1, action;
-        NDArray board = _game.initial(_nnet.getNDManager());
-        float value = 0;
-        while (value == 0) {
-            NDArray canonical = _game.canonical(board, player);
-            NDArray pi;
-            if (player > 0) {
-                pi = p1.policy(canonical, 0);
-            } else {
-                pi = p2.policy(canonical, 0);
+    /** returns the game log offset of the oldest game with examples
+     *  still in the replay buffer, or 0 if none is known, forgetting the
+     *  games older than it */
+    long replayStart() {
+        long oldest = _replay.added() - _replay.size();
+        long[] first = _replayGames.poll();
+        if (first == null) {
+            return 0;
+        }
+        while (!_replayGames.isEmpty() && _replayGames.peek()[1] <= oldest) {
+            first = _replayGames.poll();
+        }
+        _replayGames.addFirst(first);
+        return first[0];
+    }
+
+    /** trains on every game in archive, streaming its examples through
+     *  the replay buffer and training whenever REPLAY_SIZE new ones
+     *  have been read, then saves the network to OFFLINE_SAVE */
+    void trainOffline(File archive) {
+        long numExamples = 0;
+        try (GameReader reader = new GameReader(_game, archive)) {
+            while (reader.next()) {
+                _replay.add(reader.canonical(), reader.policy(),
+                        reader.value());
+                numExamples += 1;
+                if (numExamples % REPLAY_SIZE == 0) {
+                    _nnet.train(_replay);
+                }
             }
-            action = pi.argMax().getInt(0);
-            board = _game.next(board, player, action);
-            value = _game.value(board, player);
-            player = -player;
+            if (numExamples % REPLAY_SIZE != 0) {
+                _nnet.train(_replay);
+            }
+            System.out.println("read " + reader.gamesRead() + " games, "
+                    + numExamples + " examples");
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
         }
-        return player * _game.value(board, player);
+        _nnet.save(OFFLINE_SAVE);
     }
 
-    ArrayList<NDList> examplesFromGame() {
-        ArrayList<Object[]> examples = new ArrayList<>();
-        NDArray board = _game.initial(_nnet.getNDManager());
+    /** plays one game of self play with mcts, choosing moves with
+     *  random, and returns its record with policies for the fully
+     *  searched moves; unless random picks the game to be played out,
+     *  it ends when a player resigns */
+    GameRecord examplesFromGame(MCTS mcts, Random random) {
+        Metrics.SelfPlayGameEvent event = new Metrics.SelfPlayGameEvent();
+        event.begin();
+        GameRecord record = new GameRecord();
+        Resignation.Tracker resignation = _resignation.newGame(
+                random.nextFloat() < Resignation.PLAY_OUT_FRACTION);
+        Board board = _game.initial();
         int player = 1, turn = 1, action;
         float value = 0;
-        while (turn <= 10) {
-            System.out.println("\n" + _game.str(board));
+        while (value == 0) {
             int temperature = turn < TEMP_THRESHOLD ? 1 : 0;
-            NDArray canonical = _game.canonical(board, player);
-            NDArray policy = _mcts.policy(canonical, temperature);
-            examples.add(new Object[]{canonical, player, policy});
-            action = chooseAction(policy);
+            boolean full = random.nextFloat() < FULL_SEARCH_PROB;
+            mcts.earlyStop(EARLY_STOP && temperature == 0);
+            Board canonical = _game.canonical(board.copy(), player);
+            float[] policy = mcts.policy(canonical, temperature,
+                    full ? MCTS.NUM_ITER : NUM_FAST_ITER);
+            if (resignation.resigns(player, mcts.meanValue(canonical),
+                    mcts.value(canonical))) {
+                value = -1;
+                break;
+            }
+            action = chooseAction(policy, random);
+            record.add(action, full ? policy : null);
             board = _game.next(board, player, action);
             player = -player;
             value = _game.value(board, player);
             turn += 1;
         }
-        System.exit(0);
-        ArrayList<NDList> valuedExamples = new ArrayList<>();
-        for (Object[] ex : examples) {
-            NDArray b = (NDArray) ex[0];
-            NDArray pi = (NDArray) ex[2];
-            boolean samePlayer = (int) ex[1] == player;
-            NDArray v = _nnet.getNDManager().create(
-                    samePlayer ? value : -value);
-            valuedExamples.add(new NDList(b, pi, v));
-        }
-        return valuedExamples;
+        record.finish(player * value);
+        resignation.finish(record.result());
+        Metrics.GAMES.add(1);
+        Metrics.GAME_MOVES.record(record.numMoves());
+        event.moves = record.numMoves();
+        event.result = record.result();
+        event.commit();
+        return record;
     }
 
-    int chooseAction(NDArray policy) {
+    int chooseAction(float[] policy, Random random) {
         int action = -1;
-        float cumSum = 0, rand = Main.RAND.nextFloat();
+        float cumSum = 0, rand = random.nextFloat();
         while (cumSum < rand) {
             action += 1;
-            cumSum += policy.getFloat(action);
+            cumSum += policy[action];
         }
         return action;
     }
 
-    private Queue<ArrayList<NDList>> _exampleHistory;
-    private NeuralNet _nnet;
-    private MCTS _mcts;
+    /** returns a factory for worker threads, virtual ones if
+     *  VIRTUAL_THREADS is set and the runtime supports them */
+    static ThreadFactory threadFactory() {
+        if (VIRTUAL_THREADS) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual")
+                        .invoke(null);
+                Method factory = Class.forName("java.lang.Thread$Builder")
+                        .getMethod("factory");
+                return (ThreadFactory) factory.invoke(builder);
+            } catch (ReflectiveOperationException ex) {
+                System.out.println("no virtual threads, using platform");
+            }
+        }
+        return runnable -> {
+            Thread thread = new Thread(runnable, "self-play");
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private ReplayBuffer _replay;
+    /** log offset and number of the first example of each game that
+     *  may have examples in the replay buffer, oldest first */
+    private ArrayDeque<long[]> _replayGames;
+    private NeuralNet _nnet, _oldNNet;
+    private InferenceService _service;
+    private EvalCache _cache;
+    private ExecutorService _pool;
+    private Arena _arena;
+    private Resignation _resignation;
     private Game _game;
+    private int _session;
 }
\ No newline at end of file
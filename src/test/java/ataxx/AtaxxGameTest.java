@@ -0,0 +1,327 @@
+package ataxx;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Plays seeded random games on the bitboard AtaxxGame and on a port of
+ *  the NDArray rules it replaced, and checks that both agree on every
+ *  position. */
+class AtaxxGameTest {
+
+    static final int NUM_GAMES = 1000;
+    /** chance that a game prefers jumps, so some reach JUMP_LIMIT */
+    static final float JUMPY_GAME_PROB = 0.3f, JUMPY_MOVE_PROB = 0.97f;
+
+    @Test
+    void initialMatchesReference() {
+        AtaxxGame game = new AtaxxGame();
+        assertArrayEquals(Reference.initial().flat(), encode(game,
+                game.initial()));
+    }
+
+    @Test
+    void randomGamesMatchReference() {
+        AtaxxGame game = new AtaxxGame();
+        Random random = new Random(7);
+        int[] actions = new int[game.actionSize()];
+        int passes = 0, jumpLimits = 0, edgeMoves = 0;
+        for (int g = 0; g < NUM_GAMES; g += 1) {
+            boolean jumpy = random.nextFloat() < JUMPY_GAME_PROB;
+            Board board = game.initial();
+            Reference reference = Reference.initial();
+            int player = 1;
+            while (true) {
+                compare(game, board, reference);
+                if (game.value(board, player) != 0) {
+                    jumpLimits += board.jumps() == AtaxxGame.JUMP_LIMIT
+                            ? 1 : 0;
+                    break;
+                }
+                int n = game.legalActions(board, player, actions);
+                int action = choose(actions, n, jumpy, random);
+                passes += action == 0 ? 1 : 0;
+                edgeMoves += action != 0 && onEdge(AtaxxGame.TO[action])
+                        ? 1 : 0;
+                game.next(board, player, action);
+                reference = reference.next(player, action);
+                player = -player;
+            }
+        }
+        assertTrue(passes > 0, "no game passed");
+        assertTrue(jumpLimits > 0, "no game reached the jump limit");
+        assertTrue(edgeMoves > 0, "no move reached an edge square");
+    }
+
+    @Test
+    void jumpAtJumpLimitStaysAtIt() {
+        AtaxxGame game = new AtaxxGame();
+        Random random = new Random(3);
+        int[] actions = new int[game.actionSize()];
+        Board board = game.initial();
+        int player = 1;
+        while (board.jumps() < AtaxxGame.JUMP_LIMIT) {
+            int n = game.legalActions(board, player, actions);
+            game.next(board, player, choose(actions, n, true, random));
+            player = -player;
+            if (game.value(board, player) != 0
+                    && board.jumps() < AtaxxGame.JUMP_LIMIT) {
+                board = game.initial();
+                player = 1;
+            }
+        }
+        int jump = 0;
+        for (int a = 1; a < game.actionSize() && jump == 0; a += 1) {
+            int from = AtaxxGame.FROM[a], to = AtaxxGame.TO[a];
+            if ((board.pieces(player) & 1L << from) != 0
+                    && (board.empty() & 1L << to) != 0
+                    && (AtaxxGame.NEIGHBORS[from] & 1L << to) == 0) {
+                jump = a;
+            }
+        }
+        assertTrue(jump != 0, "no jump left to make");
+        game.next(board, player, jump);
+        assertEquals(AtaxxGame.JUMP_LIMIT, board.jumps());
+        assertEquals(AtaxxGame.zobrist(board.red(), board.blue(),
+                board.jumps(), board.turn()), board.hash());
+    }
+
+    /** checks legal moves, values and canonical forms of board for both
+     *  players against reference, which must hold the same position */
+    static void compare(AtaxxGame game, Board board, Reference reference) {
+        assertArrayEquals(reference.flat(), encode(game, board),
+                "boards differ");
+        int[] actions = new int[game.actionSize()];
+        for (int player = -1; player <= 1; player += 2) {
+            assertEquals(reference.value(player), game.value(board, player),
+                    "values differ");
+            int n = game.legalActions(board, player, actions);
+            int[] sorted = Arrays.copyOf(actions, n);
+            Arrays.sort(sorted);
+            assertArrayEquals(reference.legalActions(player), sorted,
+                    "legal moves differ");
+            Board canonical = game.canonical(board.copy(), player);
+            assertArrayEquals(reference.canonical(player).flat(),
+                    encode(game, canonical), "canonical forms differ");
+            assertEquals(AtaxxGame.zobrist(canonical.red(), canonical.blue(),
+                    canonical.jumps(), canonical.turn()), canonical.hash(),
+                    "canonical hash is stale");
+        }
+    }
+
+    /** picks a random one of the first n actions, a jump if jumpy and
+     *  there is one most of the time */
+    static int choose(int[] actions, int n, boolean jumpy, Random random) {
+        if (jumpy && random.nextFloat() < JUMPY_MOVE_PROB) {
+            int start = random.nextInt(n);
+            for (int i = 0; i < n; i += 1) {
+                int action = actions[(start + i) % n];
+                if (action != 0 && (AtaxxGame.NEIGHBORS[AtaxxGame.FROM[action]]
+                        & 1L << AtaxxGame.TO[action]) == 0) {
+                    return action;
+                }
+            }
+        }
+        return actions[random.nextInt(n)];
+    }
+
+    static boolean onEdge(int square) {
+        int c = square % AtaxxGame.SIDE, r = square / AtaxxGame.SIDE;
+        return c == 0 || r == 0 || c == AtaxxGame.SIDE - 1
+                || r == AtaxxGame.SIDE - 1;
+    }
+
+    static int[] encode(AtaxxGame game, Board board) {
+        int[] data = new int[2 * AtaxxGame.AREA];
+        game.encode(board, data, 0);
+        return data;
+    }
+
+    /** The rules as the NDArray AtaxxGame had them, on a plain array of
+     *  the same layout: pieces at [0][r][c] and the jump count repeated
+     *  over [1]. Carries the two fixes the bitboard engine made: squares
+     *  on row and column 0 count for mobility and captures, and jumps
+     *  increment the jump count. */
+    static final class Reference {
+
+        static final int SIDE = AtaxxGame.SIDE;
+
+        Reference(int[][][] board) {
+            _board = board;
+        }
+
+        static Reference initial() {
+            Reference board = new Reference(new int[2][SIDE][SIDE]);
+            int end = SIDE - 1;
+            board.set(0, 0, -1);
+            board.set(0, end, 1);
+            board.set(end, 0, 1);
+            board.set(end, end, -1);
+            return board;
+        }
+
+        float value(int player) {
+            float val;
+            int[] numPieces = numPieces();
+            if (numPieces[0] == 0) {
+                val = -1;
+            } else if (numPieces[1] == 0) {
+                val = 1;
+            } else if (!canMove(1) && !canMove(-1)
+                    || _board[1][0][0] == AtaxxGame.JUMP_LIMIT) {
+                if (numPieces[0] > numPieces[1]) {
+                    val = 1;
+                } else if (numPieces[1] > numPieces[0]) {
+                    val = -1;
+                } else {
+                    val = Main.EPS;
+                }
+            } else {
+                val = 0;
+            }
+            return val * player;
+        }
+
+        Reference next(int player, int action) {
+            Reference board = copy();
+            if (action == 0) {
+                return board;
+            }
+            int[] m = AtaxxGame.MOVES.get(action);
+            board.set(m[2], m[3], player);
+            int jumps;
+            if (AtaxxGame.distance(m) == 1) {
+                jumps = 0;
+            } else {
+                board.set(m[0], m[1], 0);
+                jumps = _board[1][0][0] + 1;
+            }
+            for (int[] row : board._board[1]) {
+                Arrays.fill(row, jumps);
+            }
+            board.flipAdjacent(m[2], m[3]);
+            return board;
+        }
+
+        /** returns the legal actions of player in increasing order */
+        int[] legalActions(int player) {
+            if (value(player) != 0) {
+                return new int[0];
+            }
+            if (!canMove(player)) {
+                return new int[]{0};
+            }
+            int[] actions = new int[AtaxxGame.MOVES.size()];
+            int n = 0;
+            for (int i = 1; i < actions.length; i += 1) {
+                int[] m = AtaxxGame.MOVES.get(i);
+                if (get(m[0], m[1]) == player && get(m[2], m[3]) == 0
+                        && AtaxxGame.distance(m) <= 2) {
+                    actions[n] = i;
+                    n += 1;
+                }
+            }
+            return Arrays.copyOf(actions, n);
+        }
+
+        Reference canonical(int player) {
+            Reference board = copy();
+            for (int[] row : board._board[0]) {
+                for (int c = 0; c < SIDE; c += 1) {
+                    row[c] *= player;
+                }
+            }
+            return board;
+        }
+
+        /** returns the board in the order of Game.encode */
+        int[] flat() {
+            int[] data = new int[2 * SIDE * SIDE];
+            for (int p = 0; p < 2; p += 1) {
+                for (int r = 0; r < SIDE; r += 1) {
+                    for (int c = 0; c < SIDE; c += 1) {
+                        data[(p * SIDE + r) * SIDE + c] = _board[p][r][c];
+                    }
+                }
+            }
+            return data;
+        }
+
+        private Reference copy() {
+            int[][][] board = new int[2][SIDE][];
+            for (int p = 0; p < 2; p += 1) {
+                for (int r = 0; r < SIDE; r += 1) {
+                    board[p][r] = _board[p][r].clone();
+                }
+            }
+            return new Reference(board);
+        }
+
+        private int get(int c, int r) {
+            return _board[0][r][c];
+        }
+
+        private void set(int c, int r, int piece) {
+            _board[0][r][c] = piece;
+        }
+
+        private boolean canMove(int player) {
+            for (int r = 0; r < SIDE; r += 1) {
+                for (int c = 0; c < SIDE; c += 1) {
+                    if (get(c, r) == player && nearEmpty(c, r)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean nearEmpty(int c, int r) {
+            for (int dr = -2; dr <= 2; dr += 1) {
+                for (int dc = -2; dc <= 2; dc += 1) {
+                    int ac = c + dc, ar = r + dr;
+                    if ((ac != c || ar != r)
+                            && (ac >= 0 && ac < SIDE)
+                            && (ar >= 0 && ar < SIDE)
+                            && get(ac, ar) == 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void flipAdjacent(int c, int r) {
+            int player = get(c, r);
+            for (int dr = -1; dr <= 1; dr += 1) {
+                for (int dc = -1; dc <= 1; dc += 1) {
+                    int ar = r + dr, ac = c + dc;
+                    if ((ar != r || ac != c)
+                            && (ar >= 0 && ar < SIDE)
+                            && (ac >= 0 && ac < SIDE)
+                            && get(ac, ar) == -player) {
+                        set(ac, ar, player);
+                    }
+                }
+            }
+        }
+
+        private int[] numPieces() {
+            int numRed = 0, numBlue = 0;
+            for (int[] row : _board[0]) {
+                for (int piece : row) {
+                    numRed += piece == 1 ? 1 : 0;
+                    numBlue += piece == -1 ? 1 : 0;
+                }
+            }
+            return new int[]{numRed, numBlue};
+        }
+
+        private final int[][][] _board;
+    }
+}
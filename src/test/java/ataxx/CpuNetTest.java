@@ -0,0 +1,123 @@
+package ataxx;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import org.junit.jupiter.api.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Checks the plain Java forward pass against the engine's on positions
+ *  from random games. */
+class CpuNetTest {
+
+    static final int NUM_BOARDS = 200;
+    /** optimizer steps taken first, so the BatchNorm statistics CpuNet
+     *  folds in are no longer their initial zeros and ones */
+    static final int TRAIN_STEPS = 5;
+    static final int BATCH_SIZE = 64;
+
+    @Test
+    void matchesEngineWithinTolerance() {
+        AtaxxGame game = new AtaxxGame();
+        Random random = new Random(3);
+        NeuralNet nnet = trained(game, random);
+        Board[] boards = CpuNet.randomBoards(game, NUM_BOARDS, random);
+        float[] logPolicies = new float[NUM_BOARDS * game.actionSize()];
+        float[] values = new float[NUM_BOARDS];
+        nnet.predict(boards, NUM_BOARDS, logPolicies, values);
+        for (boolean int8 : new boolean[]{false, true}) {
+            CpuNet cpu = new CpuNet(game, nnet.profile(), nnet.snapshot(),
+                    int8);
+            float[] cpuLogPolicies = new float[logPolicies.length];
+            float[] cpuValues = new float[NUM_BOARDS];
+            cpu.evaluate(boards, NUM_BOARDS, cpuLogPolicies, cpuValues);
+            float[] diffs = CpuNet.maxDifferences(logPolicies, values,
+                    cpuLogPolicies, cpuValues);
+            float tolerance = int8 ? CpuNet.INT8_TOLERANCE : CpuNet.TOLERANCE;
+            String name = int8 ? "int8" : "float";
+            assertTrue(diffs[0] <= tolerance,
+                    name + " policy differs by " + diffs[0]);
+            assertTrue(diffs[1] <= tolerance,
+                    name + " value differs by " + diffs[1]);
+        }
+    }
+
+    @Test
+    void cpuInferencePredictsThroughCpuNet() {
+        AtaxxGame game = new AtaxxGame();
+        Random random = new Random(5);
+        NeuralNet nnet = trained(game, random);
+        Board[] boards = CpuNet.randomBoards(game, NUM_BOARDS, random);
+        CpuNet cpu = new CpuNet(game, nnet.profile(), nnet.snapshot(), true);
+        float[] logPolicies = new float[NUM_BOARDS * game.actionSize()];
+        float[] values = new float[NUM_BOARDS];
+        cpu.evaluate(boards, NUM_BOARDS, logPolicies, values);
+        nnet.cpuInference(true);
+        float[] predicted = new float[logPolicies.length];
+        float[] predictedValues = new float[NUM_BOARDS];
+        nnet.predict(boards, NUM_BOARDS, predicted, predictedValues);
+        assertArrayEquals(logPolicies, predicted);
+        assertArrayEquals(values, predictedValues);
+        NeuralNet copy = nnet.copy();
+        copy.predict(boards, NUM_BOARDS, predicted, predictedValues);
+        assertArrayEquals(values, predictedValues, "copy predicts otherwise");
+    }
+
+    @Test
+    void cpuInferenceRejectsResidualProfiles() {
+        NeuralNet nnet = new NeuralNet(new AtaxxGame(), NetProfile.SMALL);
+        assertThrows(IllegalArgumentException.class,
+                () -> nnet.cpuInference(false));
+    }
+
+    /** returns a classic network after TRAIN_STEPS steps on random
+     *  batches */
+    static NeuralNet trained(AtaxxGame game, Random random) {
+        NeuralNet nnet = new NeuralNet(game, NetProfile.CLASSIC);
+        float[] losses = new float[2];
+        for (int s = 0; s < TRAIN_STEPS; s += 1) {
+            try (NDManager manager = nnet.getNDManager().newSubManager()) {
+                nnet.trainStep(randomBatch(game, manager, BATCH_SIZE,
+                        random), losses);
+            }
+        }
+        return nnet;
+    }
+
+    /** returns n positions from random games on manager with uniform
+     *  policies over their legal moves and random results, laid out
+     *  as BatchProducer lays out a minibatch */
+    static NDList randomBatch(AtaxxGame game, NDManager manager, int n,
+                              Random random) {
+        Board[] boards = CpuNet.randomBoards(game, n, random);
+        int size = 2 * AtaxxGame.AREA, actionSize = game.actionSize();
+        int[] encoded = new int[n * size];
+        float[] policies = new float[n * actionSize];
+        float[] values = new float[n];
+        int[] actions = new int[actionSize];
+        for (int i = 0; i < n; i += 1) {
+            game.encode(boards[i], encoded, i * size);
+            int numLegal = game.legalActions(boards[i], 1, actions);
+            for (int a = 0; a < numLegal; a += 1) {
+                policies[i * actionSize + actions[a]] = 1f / numLegal;
+            }
+            values[i] = random.nextBoolean() ? 1 : -1;
+        }
+        NDArray boardArray = manager.create(IntBuffer.wrap(encoded),
+                new Shape(n).addAll(game.boardShape()), DataType.INT32);
+        NDArray policyArray = manager.create(FloatBuffer.wrap(policies),
+                new Shape(n, actionSize), DataType.FLOAT32);
+        NDArray valueArray = manager.create(FloatBuffer.wrap(values),
+                new Shape(n), DataType.FLOAT32);
+        return new NDList(boardArray, policyArray, valueArray);
+    }
+}
@@ -0,0 +1,109 @@
+package ataxx;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Solves seeded endgames and checks each result against a plain
+ *  minimax over every legal move. */
+class EndgameSolverTest {
+
+    static final int NUM_POSITIONS = 500;
+    /** positions compared, out of NUM_POSITIONS, for the test to count */
+    static final int MIN_COMPARED = 60;
+    /** positions minimax visits before a position is left out */
+    static final long MINIMAX_NODES = 10_000;
+    /** chance of preferring a clone, which fills the board sooner */
+    static final float CLONE_PROB = 0.75f;
+
+    @Test
+    void solvesLikeMinimax() {
+        AtaxxGame game = new AtaxxGame();
+        Random random = new Random(11);
+        EndgameSolver solver = new EndgameSolver(game);
+        int compared = 0, unsolved = 0;
+        int[] results = new int[3];
+        for (int p = 0; p < NUM_POSITIONS; p += 1) {
+            Board canonical = endgame(game, random,
+                    1 + p % EndgameSolver.MAX_EMPTY);
+            if (canonical == null) {
+                continue;
+            }
+            int value = solver.solve(canonical);
+            if (value == EndgameSolver.UNSOLVED) {
+                unsolved += 1;
+                continue;
+            }
+            long[] budget = {MINIMAX_NODES};
+            int expected = minimax(game, canonical, budget);
+            if (budget[0] < 0) {
+                continue;
+            }
+            assertEquals(expected, value, game.str(canonical));
+            compared += 1;
+            results[value + 1] += 1;
+        }
+        String counts = String.format("compared %d, unsolved %d, "
+                + "losses %d, draws %d, wins %d", compared, unsolved,
+                results[0], results[1], results[2]);
+        assertTrue(compared >= MIN_COMPARED, counts);
+        assertTrue(results[0] > 0 && results[2] > 0, counts);
+    }
+
+    /** returns the canonical form of a position that random play from
+     *  the initial board leaves with at most numEmpty empty squares and
+     *  not over, or null if the game ended first */
+    static Board endgame(AtaxxGame game, Random random, int numEmpty) {
+        int[] actions = new int[game.actionSize()];
+        Board board = game.initial();
+        int player = 1;
+        while (game.value(board, player) == 0
+                && Long.bitCount(board.empty()) > numEmpty) {
+            int n = game.legalActions(board, player, actions);
+            int action = actions[random.nextInt(n)];
+            if (random.nextFloat() < CLONE_PROB) {
+                int start = random.nextInt(n);
+                for (int i = 0; i < n; i += 1) {
+                    int clone = actions[(start + i) % n];
+                    if (clone != 0 && (AtaxxGame.NEIGHBORS[
+                            AtaxxGame.FROM[clone]]
+                            & 1L << AtaxxGame.TO[clone]) != 0) {
+                        action = clone;
+                        break;
+                    }
+                }
+            }
+            game.next(board, player, action);
+            player = -player;
+        }
+        if (game.value(board, player) != 0) {
+            return null;
+        }
+        return game.canonical(board, player);
+    }
+
+    /** returns 1, 0 or -1 as the player to move on canonical wins, draws
+     *  or loses with best play, counting each position visited off
+     *  budget[0], which ends below 0 if it ran out */
+    static int minimax(AtaxxGame game, Board canonical, long[] budget) {
+        float terminal = game.value(canonical, 1);
+        if (terminal != 0) {
+            return terminal >= 1 ? 1 : terminal <= -1 ? -1 : 0;
+        }
+        budget[0] -= 1;
+        if (budget[0] < 0) {
+            return 0;
+        }
+        int[] actions = new int[game.actionSize()];
+        int n = game.legalActions(canonical, 1, actions), best = -1;
+        for (int i = 0; i < n && best < 1; i += 1) {
+            Board child = game.next(canonical.copy(), 1, actions[i]);
+            game.canonical(child, -1);
+            best = Math.max(best, -minimax(game, child, budget));
+        }
+        return best;
+    }
+}
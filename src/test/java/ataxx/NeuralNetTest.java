@@ -0,0 +1,76 @@
+package ataxx;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Runs the residual profiles through the engine: a forward pass, a
+ *  training step and a prediction after it. */
+class NeuralNetTest {
+
+    static final int BATCH_SIZE = 16;
+    /** residual tower without squeeze-excitation, under dense heads */
+    static final NetProfile PLAIN_RESIDUAL = new NetProfile("plain", true,
+            16, 2, 0, NetProfile.Head.DENSE, NetProfile.Head.DENSE, 0);
+
+    @Test
+    void smallProfileRuns() {
+        assertTrue(NetProfile.SMALL.seRatio() > 0,
+                "small profile lost its squeeze-excitation");
+        check(NetProfile.SMALL);
+    }
+
+    @Test
+    void plainResidualProfileRuns() {
+        check(PLAIN_RESIDUAL);
+    }
+
+    /** builds a network of profile and checks the shapes and values of
+     *  its outputs before and after one training step */
+    static void check(NetProfile profile) {
+        AtaxxGame game = new AtaxxGame();
+        Random random = new Random(1);
+        NeuralNet nnet = new NeuralNet(game, profile);
+        try (NDManager manager = nnet.getNDManager().newSubManager()) {
+            NDList batch = CpuNetTest.randomBatch(game, manager, BATCH_SIZE,
+                    random);
+            NDList out = nnet.predictBatch(batch.get(0));
+            assertEquals(new Shape(BATCH_SIZE, game.actionSize()),
+                    out.get(0).getShape());
+            assertEquals(new Shape(BATCH_SIZE, 1), out.get(1).getShape());
+            assertFinite(out.get(0), "log policies");
+            assertFinite(out.get(1), "values");
+            float[] losses = new float[2];
+            nnet.trainStep(batch, losses);
+            assertTrue(Float.isFinite(losses[0]) && Float.isFinite(losses[1]),
+                    "losses " + losses[0] + ", " + losses[1]);
+        }
+        Board[] boards = CpuNet.randomBoards(game, BATCH_SIZE, random);
+        float[] logPolicies = new float[BATCH_SIZE * game.actionSize()];
+        float[] values = new float[BATCH_SIZE];
+        nnet.predict(boards, BATCH_SIZE, logPolicies, values);
+        for (int i = 0; i < BATCH_SIZE; i += 1) {
+            float total = 0;
+            for (int a = 0; a < game.actionSize(); a += 1) {
+                total += (float) Math.exp(
+                        logPolicies[i * game.actionSize() + a]);
+            }
+            assertEquals(1, total, 1e-3f, "policy of board " + i);
+            assertTrue(Math.abs(values[i]) <= 1, "value " + values[i]);
+        }
+    }
+
+    static void assertFinite(NDArray array, String name) {
+        for (float x : array.toType(DataType.FLOAT32, false).toFloatArray()) {
+            assertTrue(Float.isFinite(x), name + " holds " + x);
+        }
+    }
+}
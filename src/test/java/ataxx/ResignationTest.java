@@ -0,0 +1,111 @@
+package ataxx;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Checks resignation against games whose values are made up so that
+ *  the right threshold is known. */
+class ResignationTest {
+
+    /** played out games of a side that sees value m for NUM_MOVES moves
+     *  and then loses with chance (1 - m) / 2, for m uniform over
+     *  [-1, 1]: sides below a threshold t fail to lose (1 + t) / 4 of
+     *  the time, which is TARGET_FALSE_RATE at -0.8 */
+    static final int NUM_GAMES = 3000;
+    static final float EXPECTED_THRESHOLD = -0.8f, TOLERANCE = 0.05f;
+
+    @Test
+    void resignsAfterNumMovesBelowThreshold() {
+        Resignation.Tracker tracker = new Resignation().newGame(false);
+        assertFalse(tracker.resigns(1, -0.95f, -0.97f));
+        assertFalse(tracker.resigns(-1, -0.99f, -0.99f));
+        assertFalse(tracker.resigns(1, -0.95f, -0.97f));
+        assertFalse(tracker.resigns(1, -0.95f, -0.5f), "best move was high");
+        assertFalse(tracker.resigns(1, -0.95f, -0.91f));
+        assertFalse(tracker.resigns(1, -0.95f, -0.91f));
+        assertTrue(tracker.resigns(1, -0.93f, -0.92f));
+    }
+
+    @Test
+    void calibratesToTargetFalseRate() {
+        Resignation resignation = new Resignation();
+        play(resignation, new Random(5), NUM_GAMES);
+        assertEquals(EXPECTED_THRESHOLD, resignation.threshold(), TOLERANCE,
+                resignation.report());
+    }
+
+    @Test
+    void drawsAreFalseResignations() {
+        Resignation resignation = new Resignation();
+        for (int g = 0; g < 2 * Resignation.MIN_SAMPLES; g += 1) {
+            int losing = g % 2 == 0 ? 1 : -1;
+            Resignation.Tracker tracker = resignation.newGame(true);
+            for (int i = 0; i < Resignation.NUM_MOVES; i += 1) {
+                tracker.resigns(losing, -0.95f, -0.95f);
+                tracker.resigns(-losing, 1, 1);
+            }
+            tracker.finish(-losing * Main.EPS);
+        }
+        assertEquals(Resignation.MIN_THRESHOLD, resignation.threshold(),
+                resignation.report());
+    }
+
+    @Test
+    void stateSurvivesCheckpoint() throws IOException {
+        Resignation resignation = new Resignation();
+        play(resignation, new Random(5), NUM_GAMES);
+        Resignation loaded = copy(resignation);
+        assertEquals(resignation.threshold(), loaded.threshold());
+        assertEquals(resignation.report(), loaded.report());
+        play(resignation, new Random(11), 200);
+        play(loaded, new Random(11), 200);
+        assertEquals(resignation.report(), loaded.report(),
+                "samples kept in a different order");
+    }
+
+    @Test
+    void emptyStateRestoresInitialThreshold() throws IOException {
+        Resignation loaded = copy(new Resignation());
+        assertEquals(Resignation.INITIAL_THRESHOLD, loaded.threshold());
+    }
+
+    /** plays numGames made up games out with resignation, checking that
+     *  none of them resigns */
+    static void play(Resignation resignation, Random random, int numGames) {
+        for (int g = 0; g < numGames; g += 1) {
+            Resignation.Tracker tracker = resignation.newGame(true);
+            float m = random.nextFloat() * 2 - 1;
+            for (int i = 0; i < 10; i += 1) {
+                float value = i >= 4 && i < 4 + Resignation.NUM_MOVES ? m : 1;
+                assertFalse(tracker.resigns(1, value, -1),
+                        "played out game resigned");
+                assertFalse(tracker.resigns(-1, 1, 1),
+                        "played out game resigned");
+            }
+            boolean redLoses = random.nextFloat() < (1 - m) / 2;
+            tracker.finish(redLoses ? -1 : 1);
+        }
+    }
+
+    /** returns a new Resignation with the state resignation writes */
+    static Resignation copy(Resignation resignation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        resignation.writeState(new DataOutputStream(bytes));
+        Resignation loaded = new Resignation();
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        loaded.readState(in);
+        assertEquals(0, in.available(), "state not read to its end");
+        return loaded;
+    }
+}